@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+
+package org.opt4j.optimizer.ea.espea;
+
+import static org.opt4j.core.Objective.Sign.MIN;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.opt4j.core.Individual;
+import org.opt4j.core.IndividualFactory;
+import org.opt4j.core.IndividualSet;
+import org.opt4j.core.IndividualSetListener;
+import org.opt4j.core.Objective;
+import org.opt4j.core.Objectives;
+import org.opt4j.core.Value;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * A {@link Normalizer} that takes the bounds (ideal and nadir point) from the
+ * current members of the {@link EnergyArchive} instead of all individuals ever
+ * evaluated. The values of each objective are kept in an ordered multiset so
+ * the bounds are updated in O(log n) when a member is added or removed. The
+ * epoch (and with it the {@link EnergyCache}) only changes when a bound does.
+ * <p>
+ * Infeasible values do not contribute to the bounds. If all members share the
+ * same value for an objective, the range is taken to be 1. Candidates outside
+ * the bounds are normalized to values outside the range between 0.0 and 1.0,
+ * the {@link EnergyCache} keeps their charges positive. The {@link
+ * NormalizationPolicy} is not used.
+ *
+ * @author luisgerhorst
+ */
+@Singleton
+public class ArchiveNormalizer extends Normalizer implements IndividualSetListener {
+
+    /**
+     * The number of members with each value, per objective.
+     */
+    private final Map<Objective, TreeMap<Double, Integer>> values =
+        new HashMap<Objective, TreeMap<Double, Integer>>();
+    private long epoch = 0;
+
+    @Inject
+    public ArchiveNormalizer(IndividualFactory individualFactory, NormalizationPolicy policy) {
+        super(individualFactory, policy);
+    }
+
+    @Override
+    public void attach(EnergyArchive archive) {
+        archive.addListener(this);
+    }
+
+    @Override
+    public Objectives normalize(Objectives objectives) {
+        Objectives normalized = new Objectives();
+
+        for (Entry<Objective, Value<?>> entry : objectives) {
+            Objective objective = entry.getKey();
+            double oldvalue = toMinProblem(entry.getKey(), entry.getValue());
+
+            double newvalue = 1.0;
+
+            if (oldvalue != Double.MAX_VALUE) {
+                TreeMap<Double, Integer> counts = values.get(objective);
+                double min = min(counts);
+                newvalue = (oldvalue - min) / (max(counts) - min);
+            }
+            // A minimized copy, see ScalarizationFunction.
+            normalized.add(objective.getName(), MIN, newvalue);
+        }
+
+        return normalized;
+    }
+
+    @Override
+    public void bounds(Objective[] objectives, double[] offsets, double[] scales) {
+        for (int i = 0; i < objectives.length; i++) {
+            TreeMap<Double, Integer> counts = values.get(objectives[i]);
+            double min = min(counts);
+            offsets[i] = min;
+            scales[i] = 1.0 / (max(counts) - min);
+        }
+    }
+
+    private static double min(TreeMap<Double, Integer> counts) {
+        return counts == null || counts.isEmpty() ? 0.0 : counts.firstKey();
+    }
+
+    private static double max(TreeMap<Double, Integer> counts) {
+        if (counts == null || counts.isEmpty() || counts.firstKey().equals(counts.lastKey())) {
+            return min(counts) + 1.0;
+        }
+        return counts.lastKey();
+    }
+
+    @Override
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * The bounds only depend on the archive.
+     */
+    @Override
+    public void inidividualStateChanged(Individual individual) {
+    }
+
+    @Override
+    public void generationEvaluated() {
+    }
+
+    @Override
+    public void individualAdded(IndividualSet collection, Individual individual) {
+        boolean changed = false;
+        for (Entry<Objective, Value<?>> entry : individual.getObjectives()) {
+            double value = toMinProblem(entry.getKey(), entry.getValue());
+            if (value == Double.MAX_VALUE) {
+                continue;
+            }
+            TreeMap<Double, Integer> counts = values.get(entry.getKey());
+            if (counts == null) {
+                counts = new TreeMap<Double, Integer>();
+                values.put(entry.getKey(), counts);
+            }
+            changed |= counts.isEmpty() || value < counts.firstKey() || value > counts.lastKey();
+            Integer count = counts.get(value);
+            counts.put(value, count == null ? 1 : count + 1);
+        }
+        if (changed) {
+            epoch++;
+        }
+    }
+
+    @Override
+    public void individualRemoved(IndividualSet collection, Individual individual) {
+        boolean changed = false;
+        for (Entry<Objective, Value<?>> entry : individual.getObjectives()) {
+            double value = toMinProblem(entry.getKey(), entry.getValue());
+            if (value == Double.MAX_VALUE) {
+                continue;
+            }
+            TreeMap<Double, Integer> counts = values.get(entry.getKey());
+            int count = counts.get(value);
+            if (count > 1) {
+                counts.put(value, count - 1);
+            } else {
+                changed |= value == counts.firstKey() || value == counts.lastKey();
+                counts.remove(value);
+            }
+        }
+        if (changed) {
+            epoch++;
+        }
+    }
+
+}
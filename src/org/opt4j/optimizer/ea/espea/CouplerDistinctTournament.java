@@ -24,16 +24,13 @@ package org.opt4j.optimizer.ea.espea;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
 
 import org.opt4j.core.Individual;
+import org.opt4j.core.common.random.Rand;
 import org.opt4j.core.start.Constant;
 import org.opt4j.operators.crossover.Pair;
 import org.opt4j.optimizers.ea.Coupler;
@@ -52,23 +49,31 @@ public class CouplerDistinctTournament implements Coupler {
 
     private final Comparator<Individual> comparator;
     private final int tournamentSize;
+    private final Rand random;
 
     /**
      * @param comparator the comparator used to determine the tournament winner
      * @param tournamentSize the tournament size, e.g. the size of the set of
      * parents from which the 'least' member is chosen to be part of a couple
+     * @param random the random number generator used to choose the
+     * participants of a tournament
      */
     @Inject
     public CouplerDistinctTournament(@Named("TournamentComparator") Comparator<Individual> comparator,
-                                     @Constant(value = "tournamentSize", namespace = CouplerDistinctTournament.class) int tournamentSize) {
+                                     @Constant(value = "tournamentSize", namespace = CouplerDistinctTournament.class) int tournamentSize,
+                                     Rand random) {
         this.comparator = comparator;
         this.tournamentSize = tournamentSize;
+        this.random = random;
     }
 
     /**
      * Creates couples that are as distinct as possible (the individuals of a
      * couple are never equal and, when there are enough parents, a couple may
-     * only occur once). A minimum of two parents is required.
+     * only occur once). A minimum of two parents is required. Takes time
+     * proportional to <code>requested * tournamentSize</code> (plus the number
+     * of parents) as long as only a small fraction of the possible couples is
+     * requested.
      *
      * @see org.opt4j.optimizers.ea.Coupler
      */
@@ -81,18 +86,19 @@ public class CouplerDistinctTournament implements Coupler {
         if (parentCount < 2) {
             throw new RuntimeException("At least 2 parents are required to create distinct couples.");
         }
-        final int distinctCouplesPossible = (int) (parentCount * (parentCount - 1)) / 2;
-        while (couples.size() < requested) {
-            // Maps individuals to a set of individuals they can be coupled
-            // with.
-            final Map<Individual, Set<Individual>> coupleMap =
-                new HashMap<Individual, Set<Individual>>();
-            for (final Individual parent : parents) {
-                final Set<Individual> set = new HashSet<Individual>(parents);
-                set.remove(parent);
-                coupleMap.put(parent, set);
-            }
+        final long distinctCouplesPossible = (long) parentCount * (parentCount - 1) / 2;
 
+        // The parents are referred to by their position in parents.
+        // permutation is partially shuffled by each tournament.
+        final int[] permutation = new int[parentCount];
+        for (int i = 0; i < parentCount; i++) {
+            permutation[i] = i;
+        }
+        // The number of couples each parent is part of in the current round.
+        final int[] coupleCounts = new int[parentCount];
+        final Set<Long> usedCouples = new HashSet<Long>();
+
+        while (couples.size() < requested) {
             // Instead of choosing two completely random individuals at a time
             // without enforcing any restrictions on the couples (in a extreme
             // case we could return the same couple requested times) as the
@@ -100,43 +106,130 @@ public class CouplerDistinctTournament implements Coupler {
             // distinct individuals. Two couples shall also contain distinct
             // individuals.
             final int freeSpaceLeft = requested - couples.size();
-            final int todo = Math.min(freeSpaceLeft, distinctCouplesPossible);
+            final int todo = (int) Math.min(freeSpaceLeft, distinctCouplesPossible);
             for (int i = 0; i < todo; i++) {
-                final Set<Individual> possibleMales = coupleMap.keySet();
-                final Individual male = tournamentSelect(possibleMales);
-                final Set<Individual> femalesForMale = coupleMap.get(male);
-                final Individual female = tournamentSelect(femalesForMale);
-
-                femalesForMale.remove(female);
-                if (femalesForMale.isEmpty()) {
-                    coupleMap.remove(male);
-                }
-
-                final Set<Individual> malesForFemale = coupleMap.get(female);
-                malesForFemale.remove(male);
-                if (malesForFemale.isEmpty()) {
-                    coupleMap.remove(female);
-                }
-
-                final Pair<Individual> pair = new Pair<Individual>(male, female);
+                final int male = tournamentSelect(parents, permutation, -1,
+                                                  coupleCounts, usedCouples);
+                final int female = tournamentSelect(parents, permutation, male,
+                                                    coupleCounts, usedCouples);
+                usedCouples.add(coupleId(male, female));
+                coupleCounts[male]++;
+                coupleCounts[female]++;
+
+                final Pair<Individual> pair =
+                    new Pair<Individual>(parents.get(male), parents.get(female));
                 couples.add(pair);
             }
+
+            usedCouples.clear();
+            for (int i = 0; i < parentCount; i++) {
+                coupleCounts[i] = 0;
+            }
         }
         return couples;
     }
 
-    private Individual tournamentSelect(final Collection<Individual> parents) {
-        final List<Individual> tournament = randomSubset(parents, tournamentSize);
-        Collections.sort(tournament, comparator);
-        return tournament.get(0);
+    /**
+     * Creates a single couple, equally distributed as the one returned by
+     * <code>getCouples(1, parents)</code>. Takes time proportional to
+     * <code>tournamentSize</code> (independent of the number of parents) if
+     * there are more than twice as many parents.
+     */
+    public Pair<Individual> getCouple(final List<Individual> parents) {
+        if (tournamentSize < 1 || parents.size() <= 2 * tournamentSize) {
+            return getCouples(1, parents).iterator().next();
+        }
+        final int[] participants = new int[tournamentSize];
+        final int male = sparseTournamentSelect(parents, -1, participants);
+        final int female = sparseTournamentSelect(parents, male, participants);
+        return new Pair<Individual>(parents.get(male), parents.get(female));
     }
 
-    private static <T> List<T> randomSubset(final Collection<T> collection,
-                                            final int size) {
-        final Vector<T> vector = new Vector<T>(collection);
-        Collections.shuffle(vector);
-        vector.setSize(Math.min(size, vector.size()));
-        return vector;
+    /**
+     * Draws tournamentSize distinct participants other than the excluded
+     * parent by rejection sampling, each subset is equally likely. At most
+     * half of the parents are unavailable, the expected number of draws is
+     * therefore at most 2 * tournamentSize.
+     *
+     * @return the position of the winner in parents
+     */
+    private int sparseTournamentSelect(final List<Individual> parents,
+                                       final int excluded,
+                                       final int[] participants) {
+        int winner = -1;
+        for (int drawn = 0; drawn < tournamentSize; drawn++) {
+            int candidate;
+            do {
+                candidate = random.nextInt(parents.size());
+            } while (candidate == excluded || isDrawn(participants, drawn, candidate));
+            participants[drawn] = candidate;
+            // Ties go to the earlier participant like in tournamentSelect.
+            if (winner < 0
+                || comparator.compare(parents.get(candidate), parents.get(winner)) < 0) {
+                winner = candidate;
+            }
+        }
+        return winner;
+    }
+
+    private static boolean isDrawn(final int[] participants,
+                                   final int drawn,
+                                   final int candidate) {
+        for (int i = 0; i < drawn; i++) {
+            if (participants[i] == candidate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Draws up to tournamentSize participants among the parents that can
+     * still be coupled (with the given male if it is not -1) using a partial
+     * Fisher-Yates shuffle of the permutation, i.e. each subset is equally
+     * likely.
+     *
+     * @return the position of the winner in parents
+     */
+    private int tournamentSelect(final List<Individual> parents,
+                                 final int[] permutation,
+                                 final int male,
+                                 final int[] coupleCounts,
+                                 final Set<Long> usedCouples) {
+        final int parentCount = permutation.length;
+        int winner = -1;
+        int participants = 0;
+        for (int drawn = 0; drawn < parentCount && participants < tournamentSize; drawn++) {
+            final int position = drawn + random.nextInt(parentCount - drawn);
+            final int candidate = permutation[position];
+            permutation[position] = permutation[drawn];
+            permutation[drawn] = candidate;
+
+            final boolean available = male < 0
+                ? coupleCounts[candidate] < parentCount - 1
+                : candidate != male && !usedCouples.contains(coupleId(male, candidate));
+            if (!available) {
+                continue;
+            }
+            participants++;
+            // Participants are drawn in random order, ties go to the earlier
+            // one.
+            if (winner < 0
+                || comparator.compare(parents.get(candidate), parents.get(winner)) < 0) {
+                winner = candidate;
+            }
+        }
+        assert winner >= 0 : "no parent available";
+        return winner;
+    }
+
+    /**
+     * @return an identifier for the unordered couple of the parents with the
+     * given positions
+     */
+    private static long coupleId(final int a, final int b) {
+        final long high = Math.max(a, b);
+        return high * (high - 1) / 2 + Math.min(a, b);
     }
 
 }
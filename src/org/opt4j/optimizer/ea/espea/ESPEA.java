@@ -22,22 +22,35 @@
 
 package org.opt4j.optimizer.ea.espea;
 
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.opt4j.core.Individual;
 import org.opt4j.core.IndividualFactory;
 import org.opt4j.core.optimizer.Archive;
 import org.opt4j.core.optimizer.IncompatibilityException;
 import org.opt4j.core.optimizer.IndividualCompleter;
+import org.opt4j.core.optimizer.Iteration;
 import org.opt4j.core.optimizer.IterativeOptimizer;
+import org.opt4j.core.optimizer.Optimizer;
+import org.opt4j.core.optimizer.OptimizerStateListener;
 import org.opt4j.core.optimizer.TerminationException;
 import org.opt4j.core.start.Constant;
+import org.opt4j.optimizer.ea.espea.PhaseTracker.Phase;
 import org.opt4j.optimizers.ea.Mating;
 
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
 
@@ -47,14 +60,26 @@ import com.google.inject.name.Named;
  * by Braun et al 2015.
  * <p>
  * The <code>Archive</code> bound must be a subclass of <code>EnergyArchive</code>.
+ * <p>
+ * If the pipeline depth is positive, the late generations are pipelined: the
+ * offspring are evaluated by a background thread while the calling thread
+ * merges the results of earlier generations into the archive and breeds the
+ * next generation. The archive a generation is bred from then lacks the
+ * results of at most pipeline depth generations. All pending generations are
+ * merged in the last iteration. If the optimization is stopped early, e.g.
+ * using the control, the pending generations are dropped: their evaluations
+ * are interrupted and their individuals never enter the archive.
  *
  * @author luisgerhorst
  */
-public class ESPEA implements IterativeOptimizer {
+@Singleton
+public class ESPEA implements IterativeOptimizer, OptimizerStateListener {
 
     // Archiving
     private final IndividualCompleter individualCompleter;
     private final EnergyArchive archive;
+    private final Normalizer normalizer;
+    private final PhaseTracker phases;
 
     // Initial Population
     private final IndividualFactory individualFactory;
@@ -67,9 +92,20 @@ public class ESPEA implements IterativeOptimizer {
     // Late Generations
     private Mating lateMating;
 
+    // Pipelining
+    private final Iteration iteration;
+    private final int pipelineDepth;
+    /**
+     * The evaluations of the generations not merged into the archive yet,
+     * oldest first.
+     */
+    private final Deque<Future<Set<Individual>>> pendingGenerations;
+    private ExecutorService evaluationExecutor;
+
     @Inject
     public ESPEA(IndividualCompleter individualCompleter,
                  Archive archive,
+                 Normalizer normalizer,
 
                  // Initial Population
                  IndividualFactory individualFactory,
@@ -80,11 +116,17 @@ public class ESPEA implements IterativeOptimizer {
                  @Constant(value = "earlyGenerationSize", namespace = ESPEA.class) int earlyGenerationSize,
 
                  // Late Generations
-                 @Named("LateMating") Mating lateMating) {
+                 @Named("LateMating") Mating lateMating,
+
+                 // Pipelining
+                 Iteration iteration,
+                 @Constant(value = "pipelineDepth", namespace = ESPEA.class) int pipelineDepth) {
 
         // Archiving
         this.individualCompleter = individualCompleter;
         this.archive = (EnergyArchive) archive;
+        this.normalizer = normalizer;
+        this.phases = new PhaseTracker(this.archive);
 
         // Initial Population
         this.individualFactory = individualFactory;
@@ -96,33 +138,113 @@ public class ESPEA implements IterativeOptimizer {
 
         // Late Generations
         this.lateMating = lateMating;
+
+        // Pipelining
+        this.iteration = iteration;
+        this.pipelineDepth = pipelineDepth;
+        this.pendingGenerations = new ArrayDeque<Future<Set<Individual>>>();
     }
 
     @Override
     public void initialize() throws TerminationException {
         archive.initialize();
+        if (pipelineDepth > 0) {
+            // One thread, the generations are completed in order. Daemon
+            // thread so it does not keep the JVM alive if the optimization
+            // is aborted without being stopped.
+            evaluationExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "ESPEA evaluation");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+    }
+
+    @Override
+    public void optimizationStarted(final Optimizer optimizer) {
     }
 
-    private boolean capacityReached = false;
+    /**
+     * Drops the pending generations and releases the evaluation thread.
+     */
+    @Override
+    public void optimizationStopped(final Optimizer optimizer) {
+        if (evaluationExecutor != null) {
+            evaluationExecutor.shutdownNow();
+        }
+        pendingGenerations.clear();
+    }
 
     @Override
     public void next() throws TerminationException {
-        if (archive.size() < 2) {
+        if (archive.size() < 4) {
+            // Only late generations are pipelined, decide based on the
+            // current archive.
+            mergePendingGenerations(0);
+        }
+        final Phase phase = phases.current();
+        switch (phase) {
+        case INITIAL:
             initialPopulation();
-        } else if (!capacityReached || archive.size() < 4) {
+            break;
+        case EARLY:
             earlyGeneration();
-            capacityReached = archive.size() == archive.getCapacity();
-        } else {
+            break;
+        default: // LATE
             lateGeneration();
+            break;
         }
+        phases.archiveUpdated(phase);
     }
 
     private void evaluate(final Set<Individual> candidates) throws TerminationException
     {
         individualCompleter.complete(candidates);
+        normalizer.generationEvaluated();
         archive.update(candidates);
     }
 
+    /**
+     * Starts evaluating the candidates in the background and merges the
+     * oldest pending generations until at most pipelineDepth are left (none
+     * in the last iteration).
+     */
+    private void evaluatePipelined(final Set<Individual> candidates) throws TerminationException
+    {
+        pendingGenerations.addLast(evaluationExecutor.submit(new Callable<Set<Individual>>() {
+                @Override
+                public Set<Individual> call() throws TerminationException {
+                    individualCompleter.complete(candidates);
+                    return candidates;
+                }
+            }));
+        final boolean last = iteration.value() >= iteration.max() - 1;
+        mergePendingGenerations(last ? 0 : pipelineDepth);
+    }
+
+    private void mergePendingGenerations(final int remaining) throws TerminationException
+    {
+        while (pendingGenerations.size() > remaining) {
+            final Set<Individual> candidates;
+            try {
+                candidates = pendingGenerations.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TerminationException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof TerminationException) {
+                    throw (TerminationException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+            normalizer.generationEvaluated();
+            archive.update(candidates);
+        }
+    }
+
     private void initialPopulation() throws TerminationException {
         final Set<Individual> initialPopulation;
         {
@@ -139,12 +261,15 @@ public class ESPEA implements IterativeOptimizer {
     }
 
     private void earlyGeneration() throws TerminationException {
+        archive.takeEnergySnapshot();
         final Collection<Individual> offspring =
             earlyMating.getOffspring(earlyGenerationSize, archive);
         evaluate(new CopyOnWriteArraySet<Individual>(offspring));
     }
 
     private void lateGeneration() throws TerminationException {
+        // No snapshot here, the late mating does not compare energies. If it
+        // falls back to the early mating, EnergyComparator takes one lazily.
         Collection<Individual> offspring;
         try {
             offspring = lateMating.getOffspring(archive.size(), archive);
@@ -153,7 +278,11 @@ public class ESPEA implements IterativeOptimizer {
             lateMating = earlyMating;
             offspring = lateMating.getOffspring(archive.size(), archive);
         }
-        evaluate(new CopyOnWriteArraySet<Individual>(offspring));
+        if (pipelineDepth > 0) {
+            evaluatePipelined(new CopyOnWriteArraySet<Individual>(offspring));
+        } else {
+            evaluate(new CopyOnWriteArraySet<Individual>(offspring));
+        }
     }
 
 }
@@ -37,13 +37,12 @@ import org.opt4j.optimizers.ea.ConstantCrossoverRate;
 import org.opt4j.optimizers.ea.Coupler;
 import org.opt4j.optimizers.ea.CrossoverRate;
 import org.opt4j.optimizers.ea.Mating;
-import org.opt4j.optimizers.ea.MatingCrossoverMutate;
 
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Names;
 
 /**
- * Config module for {@link ESPEA}.
+ * Config module for {@link ESPEA} and {@link ESPEASteadyState}.
  *
  * @author luisgerhorst
  */
@@ -51,23 +50,38 @@ public class ESPEAModule extends OptimizerModule {
 
     @Override
     public void config() {
-        bindIterativeOptimizer(ESPEA.class);
+        switch (scheduling) {
+        case STEADY_STATE:
+            bindIterativeOptimizer(ESPEASteadyState.class);
+            // Shuts down the evaluation threads.
+            addOptimizerStateListener(ESPEASteadyState.class);
+            break;
+        default: // GENERATIONAL
+            bindIterativeOptimizer(ESPEA.class);
+            // Shuts down the thread evaluating pipelined generations.
+            addOptimizerStateListener(ESPEA.class);
+            break;
+        }
 
         // Used by ESPEA
         bind(Mating.class)
             .annotatedWith(Names.named("EarlyMating"))
-            .to(MatingCrossoverMutate.class)
+            .to(MatingCrossoverMutateSingle.class)
             .in(SINGLETON);
         bind(Mating.class)
             .annotatedWith(Names.named("LateMating"))
             .to(MatingDifferentialEvolution.class)
             .in(SINGLETON);
+        // Shuts down the threads creating the offspring.
+        addOptimizerStateListener(MatingDifferentialEvolution.class);
         bind(BoundedArchive.class)
             .to(EnergyArchive.class)
             .in(SINGLETON);
         bind(Archive.class)
             .to(BoundedArchive.class)
             .in(SINGLETON);
+        // Shuts down the threads of the EnergyCache.
+        addOptimizerStateListener(EnergyArchive.class);
 
         // Used by CouplerDistinctTournament
         bind(new TypeLiteral<Comparator<Individual>>() {})
@@ -75,7 +89,7 @@ public class ESPEAModule extends OptimizerModule {
             .to(EnergyComparator.class)
             .in(SINGLETON);
 
-        // Used by MatingCrossoverMutate
+        // Used by MatingCrossoverMutateSingle
         bind(Coupler.class)
             .to(CouplerDistinctTournament.class)
             .in(SINGLETON);
@@ -102,7 +116,39 @@ public class ESPEAModule extends OptimizerModule {
             break;
         }
 
-        if (individualCompleterMaxThreads > 1) {
+        if (normalizationSource == NormalizationSource.ARCHIVE) {
+            bind(Normalizer.class)
+                .to(ArchiveNormalizer.class)
+                .in(SINGLETON);
+        }
+
+        // Used by Normalizer
+        switch (normalizationPolicyType) {
+        case HYSTERESIS:
+            bind(NormalizationPolicy.class)
+                .to(NormalizationPolicyHysteresis.class)
+                .in(SINGLETON);
+            break;
+        case EPOCH:
+            bind(NormalizationPolicy.class)
+                .to(NormalizationPolicyEpoch.class)
+                .in(SINGLETON);
+            break;
+        case FIXED:
+            bind(NormalizationPolicy.class)
+                .to(NormalizationPolicyFixed.class)
+                .in(SINGLETON);
+            break;
+        default: // EXACT
+            bind(NormalizationPolicy.class)
+                .to(NormalizationPolicyExact.class)
+                .in(SINGLETON);
+            break;
+        }
+
+        // ESPEASteadyState completes the individuals one by one from its own
+        // threads.
+        if (individualCompleterMaxThreads > 1 && scheduling == Scheduling.GENERATIONAL) {
             bind(IndividualCompleter.class)
                 .to(ParallelIndividualCompleter.class)
                 .in(SINGLETON);
@@ -110,6 +156,49 @@ public class ESPEAModule extends OptimizerModule {
     }
 
 
+    public enum Scheduling {
+        GENERATIONAL,
+        STEADY_STATE;
+    }
+
+    @Info("GENERATIONAL evaluates all offspring of a generation before updating the archive. STEADY_STATE keeps a number of evaluations in flight and updates the archive and breeds a replacement whenever one finishes.")
+    protected Scheduling scheduling = Scheduling.GENERATIONAL;
+
+    public Scheduling getScheduling() {
+        return scheduling;
+    }
+
+    public void setScheduling(Scheduling scheduling) {
+        this.scheduling = scheduling;
+    }
+
+
+    @Info("GENERATIONAL: The number of late generations that may be evaluated in the background while the next one is bred. 0 disables pipelining.")
+    @Constant(value = "pipelineDepth", namespace = ESPEA.class)
+    protected int pipelineDepth = 0;
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+
+    @Info("STEADY_STATE: The number of evaluations in flight.")
+    @Constant(value = "evaluations", namespace = ESPEASteadyState.class)
+    protected int steadyStateEvaluations = 4;
+
+    public int getSteadyStateEvaluations() {
+        return steadyStateEvaluations;
+    }
+
+    public void setSteadyStateEvaluations(int steadyStateEvaluations) {
+        this.steadyStateEvaluations = steadyStateEvaluations;
+    }
+
+
     @Constant(value = "maxThreads", namespace = ParallelIndividualCompleter.class)
     protected int individualCompleterMaxThreads = 1;
 
@@ -135,6 +224,19 @@ public class ESPEAModule extends OptimizerModule {
     }
 
 
+    @Info("Compute the energies between all candidates and the archive members at once instead of candidate by candidate.")
+    @Constant(value = "batchUpdate", namespace = EnergyArchive.class)
+    protected boolean batchUpdate = false;
+
+    public boolean isBatchUpdate() {
+        return batchUpdate;
+    }
+
+    public void setBatchUpdate(boolean batchUpdate) {
+        this.batchUpdate = batchUpdate;
+    }
+
+
     public enum ScalarizationFunctionType {
         NO_PREFERENCE,
         SUM_OF_OBJECTIVES,
@@ -154,6 +256,83 @@ public class ESPEAModule extends OptimizerModule {
     }
 
 
+    public enum NormalizationSource {
+        EVALUATED,
+        ARCHIVE;
+    }
+
+    @Info("Whether the objective bounds are taken from all individuals evaluated so far or from the current archive members.")
+    protected NormalizationSource normalizationSource =
+        NormalizationSource.EVALUATED;
+
+    public NormalizationSource getNormalizationSource() {
+        return normalizationSource;
+    }
+
+    public void setNormalizationSource(NormalizationSource normalizationSource) {
+        this.normalizationSource = normalizationSource;
+    }
+
+
+    public enum NormalizationPolicyType {
+        EXACT,
+        HYSTERESIS,
+        EPOCH,
+        FIXED;
+    }
+
+    @Info("When changed objective bounds are applied. Every change forces the energy cache to be rebuilt.")
+    protected NormalizationPolicyType normalizationPolicyType =
+        NormalizationPolicyType.EXACT;
+
+    public NormalizationPolicyType getNormalizationPolicyType() {
+        return normalizationPolicyType;
+    }
+
+    public void setNormalizationPolicyType(NormalizationPolicyType normalizationPolicyType) {
+        this.normalizationPolicyType = normalizationPolicyType;
+    }
+
+
+    @Info("HYSTERESIS: The fraction of the range by which an objective bound may be exceeded before the bounds are updated.")
+    @Constant(value = "tolerance", namespace = NormalizationPolicyHysteresis.class)
+    protected double normalizationTolerance = 0.05;
+
+    public double getNormalizationTolerance() {
+        return normalizationTolerance;
+    }
+
+    public void setNormalizationTolerance(double normalizationTolerance) {
+        this.normalizationTolerance = normalizationTolerance;
+    }
+
+
+    @Info("EPOCH: The number of generations between two updates of the objective bounds.")
+    @Constant(value = "generations", namespace = NormalizationPolicyEpoch.class)
+    protected int normalizationEpochGenerations = 1;
+
+    public int getNormalizationEpochGenerations() {
+        return normalizationEpochGenerations;
+    }
+
+    public void setNormalizationEpochGenerations(int normalizationEpochGenerations) {
+        this.normalizationEpochGenerations = normalizationEpochGenerations;
+    }
+
+
+    @Info("FIXED: The bounds of the objectives as comma separated name=lower:upper entries.")
+    @Constant(value = "bounds", namespace = NormalizationPolicyFixed.class)
+    protected String normalizationBounds = "";
+
+    public String getNormalizationBounds() {
+        return normalizationBounds;
+    }
+
+    public void setNormalizationBounds(String normalizationBounds) {
+        this.normalizationBounds = normalizationBounds;
+    }
+
+
     @MaxIterations
     protected int iterations = 1000;
 
@@ -204,6 +383,48 @@ public class ESPEAModule extends OptimizerModule {
     }
 
 
+    @Info("How the differential evolution trial vector is recombined with the parent. OPERATOR, the default, uses the bound crossover operator as before. BINOMIAL computes both steps in a single pass for double genotypes, boxing only the elements taken from the trial vector.")
+    @Constant(value = "recombination", namespace = MatingDifferentialEvolution.class)
+    protected MatingDifferentialEvolution.Recombination differentialEvolutionRecombination =
+        MatingDifferentialEvolution.Recombination.OPERATOR;
+
+    public MatingDifferentialEvolution.Recombination getDifferentialEvolutionRecombination() {
+        return differentialEvolutionRecombination;
+    }
+
+    public void setDifferentialEvolutionRecombination(MatingDifferentialEvolution.Recombination differentialEvolutionRecombination) {
+        this.differentialEvolutionRecombination = differentialEvolutionRecombination;
+    }
+
+
+    /**
+     * Also known as CR, only used by the BINOMIAL recombination.
+     */
+    @Constant(value = "binomialCrossoverRate", namespace = MatingDifferentialEvolution.class)
+    protected double differentialEvolutionCrossoverRate = 0.9;
+
+    public double getDifferentialEvolutionCrossoverRate() {
+        return differentialEvolutionCrossoverRate;
+    }
+
+    public void setDifferentialEvolutionCrossoverRate(double differentialEvolutionCrossoverRate) {
+        this.differentialEvolutionCrossoverRate = differentialEvolutionCrossoverRate;
+    }
+
+
+    @Info("The number of threads creating differential evolution offspring. Only used by the BINOMIAL recombination of double genotypes, the offspring do not depend on the number of threads.")
+    @Constant(value = "threads", namespace = MatingDifferentialEvolution.class)
+    protected int differentialEvolutionThreads = 1;
+
+    public int getDifferentialEvolutionThreads() {
+        return differentialEvolutionThreads;
+    }
+
+    public void setDifferentialEvolutionThreads(int differentialEvolutionThreads) {
+        this.differentialEvolutionThreads = differentialEvolutionThreads;
+    }
+
+
     @Constant(value = "rate", namespace = ConstantCrossoverRate.class)
     protected double crossoverRate = 0.9;
 
@@ -252,4 +473,121 @@ public class ESPEAModule extends OptimizerModule {
     }
 
 
+    @Info("The number of mutations after which the COMPENSATED cache mutation strategy audits a few energies.")
+    @Constant(value = "driftAuditInterval", namespace = EnergyCache.class)
+    protected int cacheDriftAuditInterval = 100;
+
+    public int getCacheDriftAuditInterval() {
+        return cacheDriftAuditInterval;
+    }
+
+    public void setCacheDriftAuditInterval(int cacheDriftAuditInterval) {
+        this.cacheDriftAuditInterval = cacheDriftAuditInterval;
+    }
+
+
+    @Info("The relative error of an audited energy above which the COMPENSATED cache mutation strategy recalculates all energies.")
+    @Constant(value = "driftTolerance", namespace = EnergyCache.class)
+    protected double cacheDriftTolerance = 1e-9;
+
+    public double getCacheDriftTolerance() {
+        return cacheDriftTolerance;
+    }
+
+    public void setCacheDriftTolerance(double cacheDriftTolerance) {
+        this.cacheDriftTolerance = cacheDriftTolerance;
+    }
+
+
+    @Info("The number of threads used to recompute all energies after the normalization bounds changed.")
+    @Constant(value = "rebuildThreads", namespace = EnergyCache.class)
+    protected int cacheRebuildThreads = 1;
+
+    public int getCacheRebuildThreads() {
+        return cacheRebuildThreads;
+    }
+
+    public void setCacheRebuildThreads(int cacheRebuildThreads) {
+        this.cacheRebuildThreads = cacheRebuildThreads;
+    }
+
+
+    @Info("The type used to store the energies between archive members. FLOAT halves the memory required by the cache.")
+    @Constant(value = "summandPrecision", namespace = EnergyCache.class)
+    protected SummandMatrix.Precision cacheSummandPrecision = SummandMatrix.Precision.DOUBLE;
+
+    public SummandMatrix.Precision getCacheSummandPrecision() {
+        return cacheSummandPrecision;
+    }
+
+    public void setCacheSummandPrecision(SummandMatrix.Precision cacheSummandPrecision) {
+        this.cacheSummandPrecision = cacheSummandPrecision;
+    }
+
+
+    @Info("Where the energies between archive members are stored. MAPPED keeps them in a memory-mapped file outside the Java heap, for archives too large for the heap. NONE recomputes them when needed, using memory linear in the capacity.")
+    @Constant(value = "summandStorage", namespace = EnergyCache.class)
+    protected SummandMatrix.Storage cacheSummandStorage = SummandMatrix.Storage.HEAP;
+
+    public SummandMatrix.Storage getCacheSummandStorage() {
+        return cacheSummandStorage;
+    }
+
+    public void setCacheSummandStorage(SummandMatrix.Storage cacheSummandStorage) {
+        this.cacheSummandStorage = cacheSummandStorage;
+    }
+
+
+    @Info("The directory for the file of a MAPPED summand matrix. Uses the default temporary-file directory if empty.")
+    @Constant(value = "summandDirectory", namespace = EnergyCache.class)
+    protected String cacheSummandDirectory = "";
+
+    public String getCacheSummandDirectory() {
+        return cacheSummandDirectory;
+    }
+
+    public void setCacheSummandDirectory(String cacheSummandDirectory) {
+        this.cacheSummandDirectory = cacheSummandDirectory;
+    }
+
+
+    @Info("Reject candidates as soon as the energy between them and their nearest archive members proves they can not replace any member.")
+    @Constant(value = "earlyRejection", namespace = EnergyCache.class)
+    protected boolean cacheEarlyRejection = false;
+
+    public boolean isCacheEarlyRejection() {
+        return cacheEarlyRejection;
+    }
+
+    public void setCacheEarlyRejection(boolean cacheEarlyRejection) {
+        this.cacheEarlyRejection = cacheEarlyRejection;
+    }
+
+
+    @Info("If positive, the energies are approximated by treating distant groups of archive members as one (Barnes-Hut). Smaller angles are more precise, 0 computes the exact energies. Requires a separable scalarization function.")
+    @Constant(value = "approximationAngle", namespace = EnergyCache.class)
+    protected double cacheApproximationAngle = 0;
+
+    public double getCacheApproximationAngle() {
+        return cacheApproximationAngle;
+    }
+
+    public void setCacheApproximationAngle(double cacheApproximationAngle) {
+        this.cacheApproximationAngle = cacheApproximationAngle;
+    }
+
+
+    @Info("Keep the archive members in the lowest slots of the cache by moving the last member into the slot of a removed one.")
+    @Constant(value = "compactSlots", namespace = EnergyCache.class)
+    protected boolean cacheCompactSlots = false;
+
+    public boolean isCacheCompactSlots() {
+        return cacheCompactSlots;
+    }
+
+    public void setCacheCompactSlots(boolean cacheCompactSlots) {
+        this.cacheCompactSlots = cacheCompactSlots;
+    }
+
+
 }
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+
+package org.opt4j.optimizer.ea.espea;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.opt4j.core.Individual;
+import org.opt4j.core.IndividualFactory;
+import org.opt4j.core.IndividualSet;
+import org.opt4j.core.IndividualSetListener;
+import org.opt4j.core.optimizer.Archive;
+import org.opt4j.core.optimizer.IncompatibilityException;
+import org.opt4j.core.optimizer.IndividualCompleter;
+import org.opt4j.core.optimizer.IterativeOptimizer;
+import org.opt4j.core.optimizer.Optimizer;
+import org.opt4j.core.optimizer.OptimizerStateListener;
+import org.opt4j.core.optimizer.TerminationException;
+import org.opt4j.core.start.Constant;
+import org.opt4j.optimizer.ea.espea.PhaseTracker.Phase;
+import org.opt4j.optimizers.ea.Mating;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+
+/**
+ * Steady-state variant of {@link ESPEA}. Instead of waiting for all
+ * individuals of a generation to be evaluated, a fixed number of evaluations
+ * is kept in flight. Each evaluated individual immediately updates the archive
+ * and a replacement is bred from the current archive members (using the early
+ * or late mating like {@link ESPEA} would in the current state). Matings
+ * implementing {@link SingleOffspringMating} breed the replacement in time
+ * independent of the archive size. An iteration
+ * ends after as many evaluations as {@link ESPEA} would perform in its
+ * generation, evaluations still in flight carry over to the next iteration.
+ * <p>
+ * The individuals are completed by the bound <code>IndividualCompleter</code>
+ * one by one from multiple threads, the decoder and evaluator must therefore
+ * be thread-safe. When the optimization stops, the evaluations still in
+ * flight are interrupted and their individuals dropped.
+ *
+ * @author luisgerhorst
+ */
+@Singleton
+public class ESPEASteadyState implements IterativeOptimizer, OptimizerStateListener, IndividualSetListener {
+
+    // Archiving
+    private final IndividualCompleter individualCompleter;
+    private final EnergyArchive archive;
+    private final Normalizer normalizer;
+    private final PhaseTracker phases;
+
+    // Initial Population
+    private final IndividualFactory individualFactory;
+    private final int initialPopulationSize;
+
+    // Early Generations
+    private final Mating earlyMating;
+    private final int earlyGenerationSize;
+
+    // Late Generations
+    private Mating lateMating;
+
+    // Breeding, the archive members in the slots 0 to size() - 1 of
+    // parentSlots, kept up to date by the archive listener.
+    private IndexMap parentSlots;
+    private final List<Individual> parents = new AbstractList<Individual>() {
+            @Override
+            public Individual get(final int index) {
+                return parentSlots.get(index);
+            }
+
+            @Override
+            public int size() {
+                return parentSlots.size();
+            }
+        };
+
+    // Evaluation
+    private final int evaluations;
+    private ExecutorService executor;
+    private CompletionService<Individual> completionService;
+    private int inFlight;
+
+    @Inject
+    public ESPEASteadyState(IndividualCompleter individualCompleter,
+                            Archive archive,
+                            Normalizer normalizer,
+
+                            // Initial Population
+                            IndividualFactory individualFactory,
+                            @Constant(value = "initialPopulationSize", namespace = ESPEA.class) int initialPopulationSize,
+
+                            // Early Generations
+                            @Named("EarlyMating") Mating earlyMating,
+                            @Constant(value = "earlyGenerationSize", namespace = ESPEA.class) int earlyGenerationSize,
+
+                            // Late Generations
+                            @Named("LateMating") Mating lateMating,
+
+                            // Evaluation
+                            @Constant(value = "evaluations", namespace = ESPEASteadyState.class) int evaluations) {
+
+        // Archiving
+        this.individualCompleter = individualCompleter;
+        this.archive = (EnergyArchive) archive;
+        this.normalizer = normalizer;
+        this.phases = new PhaseTracker(this.archive);
+
+        // Initial Population
+        this.individualFactory = individualFactory;
+        this.initialPopulationSize = initialPopulationSize;
+
+        // Early Generations
+        this.earlyMating = earlyMating;
+        this.earlyGenerationSize = earlyGenerationSize;
+
+        // Late Generations
+        this.lateMating = lateMating;
+
+        // Evaluation
+        this.evaluations = Math.max(1, evaluations);
+    }
+
+    @Override
+    public void initialize() throws TerminationException {
+        archive.initialize();
+        parentSlots = new IndexMap(archive.getCapacity(), true);
+        for (final Individual member : archive) {
+            parentSlots.put(member);
+        }
+        archive.addListener(this);
+        // Daemon threads, they must not keep the JVM alive if the
+        // optimization is aborted without being stopped.
+        executor = Executors.newFixedThreadPool(evaluations, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ESPEA evaluation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        completionService = new ExecutorCompletionService<Individual>(executor);
+        inFlight = 0;
+    }
+
+    @Override
+    public void optimizationStarted(final Optimizer optimizer) {
+    }
+
+    /**
+     * Interrupts the evaluations still in flight and releases the threads.
+     */
+    @Override
+    public void optimizationStopped(final Optimizer optimizer) {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void individualAdded(final IndividualSet collection,
+                                final Individual added) {
+        parentSlots.put(added);
+    }
+
+    @Override
+    public void individualRemoved(final IndividualSet collection,
+                                  final Individual removed) {
+        parentSlots.compact(parentSlots.remove(removed));
+    }
+
+    @Override
+    public void next() throws TerminationException {
+        final Phase phase = phases.current();
+        final int iterationEvaluations;
+        switch (phase) {
+        case INITIAL:
+            iterationEvaluations = initialPopulationSize;
+            break;
+        case EARLY:
+            iterationEvaluations = earlyGenerationSize;
+            break;
+        default: // LATE
+            iterationEvaluations = archive.size();
+            break;
+        }
+
+        for (int evaluated = 0; evaluated < iterationEvaluations; evaluated++) {
+            while (inFlight < evaluations) {
+                submit(breed());
+            }
+            final Individual individual = take();
+            if (evaluated == iterationEvaluations - 1) {
+                normalizer.generationEvaluated();
+            }
+            archive.update(Collections.singleton(individual));
+            phases.archiveUpdated(phase);
+        }
+    }
+
+    /**
+     * Creates a new individual from the current archive members.
+     */
+    private Individual breed() {
+        switch (phases.current()) {
+        case INITIAL:
+            return individualFactory.create();
+        case EARLY:
+            return offspring(earlyMating);
+        default: // LATE
+            try {
+                return offspring(lateMating);
+            } catch (IncompatibilityException ie) {
+                lateMating = earlyMating;
+                return offspring(lateMating);
+            }
+        }
+    }
+
+    private Individual offspring(final Mating mating) {
+        if (mating instanceof SingleOffspringMating) {
+            return ((SingleOffspringMating) mating).createOffspring(parents);
+        }
+        return mating.getOffspring(1, parents).iterator().next();
+    }
+
+    private void submit(final Individual individual) {
+        completionService.submit(new Callable<Individual>() {
+                @Override
+                public Individual call() throws TerminationException {
+                    individualCompleter.complete(individual);
+                    return individual;
+                }
+            });
+        inFlight++;
+    }
+
+    /**
+     * Waits for the next evaluation to finish.
+     */
+    private Individual take() throws TerminationException {
+        try {
+            final Individual individual = completionService.take().get();
+            inFlight--;
+            return individual;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TerminationException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TerminationException) {
+                throw (TerminationException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+}
@@ -22,16 +22,19 @@
 
 package org.opt4j.optimizer.ea.espea;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.opt4j.core.Individual;
 import org.opt4j.core.common.archive.BoundedArchive;
+import org.opt4j.core.optimizer.Optimizer;
+import org.opt4j.core.optimizer.OptimizerStateListener;
 import org.opt4j.core.start.Constant;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.Singleton;
 
 
 /**
@@ -43,12 +46,23 @@ import com.google.inject.Provider;
  *
  * @author luisgerhorst
  */
-public class EnergyArchive extends BoundedArchive {
+@Singleton
+public class EnergyArchive extends BoundedArchive implements OptimizerStateListener {
 
     private final ReplacementStrategy replacementStrategy;
+    private final boolean batchUpdate;
 
     // Breaks potential circular dependency over TsvLogger.
     private final EnergyCache.MutationStrategy cacheMutationStrategy;
+    private final int cacheRebuildThreads;
+    private final SummandMatrix.Precision cacheSummandPrecision;
+    private final SummandMatrix.Storage cacheSummandStorage;
+    private final String cacheSummandDirectory;
+    private final int cacheDriftAuditInterval;
+    private final double cacheDriftTolerance;
+    private final boolean cacheEarlyRejection;
+    private final double cacheApproximationAngle;
+    private final boolean cacheCompactSlots;
     private final ScalarizationFunction scalarizationFunction;
     private final Provider<Normalizer> normalizerProvider;
     private EnergyCache energyCache;
@@ -58,26 +72,90 @@ public class EnergyArchive extends BoundedArchive {
                          Provider<Normalizer> normalizerProvider,
                          @Constant(value = "capacity", namespace = EnergyArchive.class) int capacity,
                          @Constant(value = "replacementStrategy", namespace = EnergyArchive.class) ReplacementStrategy replacementStrategy,
-                         @Constant(value = "cacheMutationStrategy", namespace = EnergyCache.class) EnergyCache.MutationStrategy cacheMutationStrategy)
+                         @Constant(value = "batchUpdate", namespace = EnergyArchive.class) boolean batchUpdate,
+                         @Constant(value = "cacheMutationStrategy", namespace = EnergyCache.class) EnergyCache.MutationStrategy cacheMutationStrategy,
+                         @Constant(value = "rebuildThreads", namespace = EnergyCache.class) int cacheRebuildThreads,
+                         @Constant(value = "summandPrecision", namespace = EnergyCache.class) SummandMatrix.Precision cacheSummandPrecision,
+                         @Constant(value = "summandStorage", namespace = EnergyCache.class) SummandMatrix.Storage cacheSummandStorage,
+                         @Constant(value = "summandDirectory", namespace = EnergyCache.class) String cacheSummandDirectory,
+                         @Constant(value = "driftAuditInterval", namespace = EnergyCache.class) int cacheDriftAuditInterval,
+                         @Constant(value = "driftTolerance", namespace = EnergyCache.class) double cacheDriftTolerance,
+                         @Constant(value = "earlyRejection", namespace = EnergyCache.class) boolean cacheEarlyRejection,
+                         @Constant(value = "approximationAngle", namespace = EnergyCache.class) double cacheApproximationAngle,
+                         @Constant(value = "compactSlots", namespace = EnergyCache.class) boolean cacheCompactSlots)
     {
         super(capacity);
         this.replacementStrategy = replacementStrategy;
+        this.batchUpdate = batchUpdate;
 
         this.cacheMutationStrategy = cacheMutationStrategy;
+        this.cacheRebuildThreads = cacheRebuildThreads;
+        this.cacheSummandPrecision = cacheSummandPrecision;
+        this.cacheSummandStorage = cacheSummandStorage;
+        this.cacheSummandDirectory = cacheSummandDirectory;
+        this.cacheDriftAuditInterval = cacheDriftAuditInterval;
+        this.cacheDriftTolerance = cacheDriftTolerance;
+        this.cacheEarlyRejection = cacheEarlyRejection;
+        this.cacheApproximationAngle = cacheApproximationAngle;
+        this.cacheCompactSlots = cacheCompactSlots;
         this.scalarizationFunction = scalarizationFunction;
         this.normalizerProvider = normalizerProvider;
     }
 
     public void initialize() {
+        // Attached first so the bounds are updated before the cache is
+        // notified of a modification.
+        final Normalizer normalizer = normalizerProvider.get();
+        normalizer.attach(this);
         this.energyCache = new EnergyCache(this, scalarizationFunction,
-                                           normalizerProvider.get(),
-                                           cacheMutationStrategy);
+                                           normalizer,
+                                           cacheMutationStrategy,
+                                           cacheRebuildThreads,
+                                           cacheSummandPrecision,
+                                           cacheSummandStorage,
+                                           cacheSummandDirectory,
+                                           cacheDriftAuditInterval,
+                                           cacheDriftTolerance,
+                                           cacheEarlyRejection,
+                                           cacheApproximationAngle,
+                                           cacheCompactSlots);
     }
 
     @Override
-    protected boolean updateWithNondominated(final Collection<Individual> candidates)
+    public void optimizationStarted(final Optimizer optimizer) {
+    }
+
+    /**
+     * Releases the threads of the {@link EnergyCache}, the archive remains
+     * usable.
+     */
+    @Override
+    public void optimizationStopped(final Optimizer optimizer) {
+        if (energyCache != null) {
+            energyCache.shutdown();
+        }
+    }
+
+    @Override
+    protected boolean updateWithNondominated(Collection<Individual> candidates)
     {
         boolean changed = false;
+        if (batchUpdate) {
+            // Replacements do not change the size of the archive, once it is
+            // full all remaining candidates can be processed as a batch.
+            final List<Individual> remaining = new ArrayList<Individual>(candidates.size());
+            for (final Individual candidate : candidates) {
+                if (this.size() < this.getCapacity()) {
+                    changed |= addCheckedIndividual(candidate);
+                } else {
+                    remaining.add(candidate);
+                }
+            }
+            if (remaining.size() > 1) {
+                return replaceWithNondominated(remaining) || changed;
+            }
+            candidates = remaining;
+        }
         for (final Individual candidate : candidates) {
             if (this.size() < this.getCapacity()) {
                 changed |= addCheckedIndividual(candidate);
@@ -88,6 +166,33 @@ public class EnergyArchive extends BoundedArchive {
         return changed;
     }
 
+    /**
+     * Same as calling <code>replaceWithNondominated</code> for each candidate
+     * but computes the energies between the candidates and the archive members
+     * in batches.
+     */
+    private boolean replaceWithNondominated(final List<Individual> candidates)
+    {
+        boolean changed = false;
+        final int batchCapacity = energyCache.getBatchCapacity();
+        for (int start = 0; start < candidates.size(); start += batchCapacity) {
+            final List<Individual> batch =
+                candidates.subList(start, Math.min(start + batchCapacity, candidates.size()));
+            energyCache.prepareBatch(batch);
+            for (int position = 0; position < batch.size(); position++) {
+                final int index =
+                    energyCache.batchReplacementIndexFor(position, replacementStrategy);
+                if (index >= 0) {
+                    remove(energyCache.member(index));
+                    addCheckedIndividual(batch.get(position));
+                    changed = true;
+                }
+            }
+            energyCache.endBatch();
+        }
+        return changed;
+    }
+
     /**
      * Replaces an archive member with the candidate if the replacement
      * decreases the overall energy of the archive. If multiple archive members
@@ -96,122 +201,29 @@ public class EnergyArchive extends BoundedArchive {
      */
     private boolean replaceWithNondominated(final Individual candidate)
     {
-        // The cache has been invalidated by the normalizer.
-        final Collection<RemovalOption> allMembers = energyCache.replacementEnergiesFor(candidate);
-        final Collection<RemovalOption> replaceableMembers = replaceableMembers(allMembers);
+        final int index = energyCache.replacementIndexFor(candidate, replacementStrategy);
 
         // No member member introduces more energy into the system than the
         // candidate would have introduced.
-        if (replaceableMembers.isEmpty()) return false;
-
-        final Individual memberToBeReplaced;
-        switch (replacementStrategy) {
-        case BEST_FEASIBLE_POSITION:
-            memberToBeReplaced =
-                bestFeasiblePosition(replaceableMembers);
-            break;
-        case WORST_IN_ARCHIVE:
-            memberToBeReplaced =
-                worstInArchive(replaceableMembers);
-            break;
-        default: // LARGEST_ENERGY_DECREASE
-            memberToBeReplaced =
-                largestEnergyDecrease(replaceableMembers);
-            break;
-        }
+        if (index < 0) return false;
 
-        remove(memberToBeReplaced);
+        remove(energyCache.member(index));
         addCheckedIndividual(candidate);
         return true;
     }
 
-    /**
-     * Selects all archive members that introduce more energy into the archive
-     * than the candidate would.
-     */
-    private Collection<RemovalOption> replaceableMembers(Collection<RemovalOption> allMembers)
-    {
-        final List<RemovalOption> list = new LinkedList<RemovalOption>();
-        for (final RemovalOption entry : allMembers) {
-            if (entry.memberEnergy > entry.candidateEnergy) {
-                list.add(entry);
-            }
-        }
-        return list;
-    }
-
     public enum ReplacementStrategy {
         BEST_FEASIBLE_POSITION,
         WORST_IN_ARCHIVE,
         LARGEST_ENERGY_DECREASE;
     }
 
-    private Individual bestFeasiblePosition(final Collection<RemovalOption> replaceableMembers) {
-        Individual toBeReplaced = null;
-        double minCandidateEnergy = Double.POSITIVE_INFINITY;
-        for (final RemovalOption entry : replaceableMembers) {
-            if (entry.candidateEnergy < minCandidateEnergy) {
-                toBeReplaced = entry.member;
-                minCandidateEnergy = entry.candidateEnergy;
-            }
-        }
-        return toBeReplaced;
-    }
-
-    private Individual worstInArchive(final Collection<RemovalOption> replaceableMembers) {
-        Individual toBeReplaced = null;
-        double maxMemberEnergy = Double.NEGATIVE_INFINITY;
-        for (final RemovalOption entry : replaceableMembers) {
-            if (entry.memberEnergy > maxMemberEnergy) {
-                toBeReplaced = entry.member;
-                maxMemberEnergy = entry.memberEnergy;
-            }
-        }
-        assert replaceableMembers.isEmpty() || toBeReplaced != null;
-        return toBeReplaced;
-    }
-
-    private Individual largestEnergyDecrease(final Collection<RemovalOption> replaceableMembers) {
-        Individual toBeReplaced = null;
-        double maxEnergyDecrease = Double.NEGATIVE_INFINITY;
-        for (final RemovalOption entry : replaceableMembers) {
-            final double energyDecrease = entry.memberEnergy - entry.candidateEnergy;
-            if (energyDecrease > maxEnergyDecrease) {
-                toBeReplaced = entry.member;
-                maxEnergyDecrease = energyDecrease;
-            }
-        }
-        return toBeReplaced;
-    }
-
     /**
-     * Used to determine the energy decrease for a candidate if it was to
-     * replace an archive member.<p>
-     *
-     * With respect to the {@link ESPEA} paper, this class represents a tuple of
-     * e(a), e_{-a}(p) and a.
+     * @return the cache used to compute the energies of the archive members,
+     * null before <code>initialize</code> has been called
      */
-    public static class RemovalOption {
-        /**
-         * The total energy <code>member</code> currently introduces into the
-         * archive.
-         */
-        public final double memberEnergy;
-        /**
-         * The energy a candidate would introduce into the archive if it was to
-         * replace <code>member</code>.
-         */
-        public final double candidateEnergy;
-        /**
-         * An archive member.
-         */
-        public final Individual member;
-        public RemovalOption(double memberEnergy, double candidateEnergy,
-                             Individual member) {
-            this.memberEnergy = memberEnergy;
-            this.candidateEnergy = candidateEnergy;
-            this.member = member;
-        }
+    public EnergyCache getEnergyCache() {
+        return energyCache;
     }
 
     /**
@@ -223,4 +235,21 @@ public class EnergyArchive extends BoundedArchive {
         return energyCache.energyIntroducedBy(individual);
     }
 
+    /**
+     * Saves the energies of all members, see
+     * {@link EnergyCache#takeSnapshot()}.
+     */
+    public void takeEnergySnapshot() {
+        energyCache.takeSnapshot();
+    }
+
+    /**
+     * @param individual archive member whose energy shall be returned
+     * @return the energy introduced by the given individual when the latest
+     * snapshot was taken
+     */
+    public double snapshotEnergyOf(final Individual individual) {
+        return energyCache.snapshotEnergyOf(individual);
+    }
+
 }
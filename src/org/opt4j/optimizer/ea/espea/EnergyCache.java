@@ -22,15 +22,17 @@
 
 package org.opt4j.optimizer.ea.espea;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.opt4j.core.Individual;
 import org.opt4j.core.IndividualSet;
 import org.opt4j.core.IndividualSetListener;
-import org.opt4j.core.Objectives;
+import org.opt4j.core.Objective;
 
 /**
  * Efficiently computes the energies for each member of an {@link EnergyArchive}.
@@ -50,109 +52,858 @@ import org.opt4j.core.Objectives;
 public class EnergyCache implements IndividualSetListener {
 
     private final ScalarizationFunction scalarizationFunction;
+    /**
+     * Whether the energies can be computed from the charges stored in
+     * memberCharges, see {@link ScalarizationFunction#isSeparable()}.
+     */
+    private final boolean separable;
     private final Normalizer normalizer;
+    /**
+     * The charges are computed for the normalized objectives clamped to [0,
+     * 1], i.e. each point is normalized against the bounds widened to include
+     * it. Points beyond the bounds used for normalization (the policy may not
+     * have applied the latest bounds yet, or they only cover the archive)
+     * would otherwise have negative normalized objectives for which e.g. the
+     * sum of objectives is not positive. A candidate beyond the lower bound of
+     * an objective therefore gets the charge of its projection onto that
+     * bound: it is accepted if it decreases the energy there, not
+     * unconditionally. The distances still use the unclamped objectives.
+     * <p>
+     * The charges are additionally at least this fraction of the charge of
+     * the worst normalized point (all objectives 1.0), which only matters for
+     * points at the best corner of the bounds.
+     */
+    private static final double MIN_RELATIVE_CHARGE = 1e-9;
+    // MIN_RELATIVE_CHARGE times the charge and pairwise value of the worst
+    // point, set along with objectiveCount.
+    private double minCharge;
+    private double minPairwise;
 
     private final int capacity;
     /**
      * Used to assign indices to individuals.
      */
     private final IndexMap indexMap;
+    /**
+     * Whether the members always occupy the indices 0 to size - 1. When a
+     * member is removed, the member with the highest index is moved into its
+     * slot.
+     */
+    private final boolean compactSlots;
 
     private boolean cacheValid;
+    /**
+     * The epoch of the {@link Normalizer} when the member sums were
+     * recomputed.
+     */
+    private long normalizationEpoch;
     /**
      * Stores the energy between the archive members with the corresponding
-     * indices. When accessing memberSummands[i][j], i must always be the
-     * greater one of the two indices.
+     * indices. When accessing memberSummands.get(i, j), i must always be the
+     * greater one of the two indices. Null if the summands are not stored
+     * (storage NONE), they are then recomputed from normalizedObjectives when
+     * needed.
      */
-    private final double[][] memberSummands;
+    private final SummandMatrix memberSummands;
     /**
      * The total energy the member with the corresponding index introduces into
      * the archive.
      */
     private final double[] memberSums;
+    /**
+     * The member sums at the time <code>takeSnapshot</code> was called, by
+     * index. Only valid while the archive has not been modified since.
+     */
+    private final double[] snapshotEnergies;
+    private boolean snapshotValid;
+
+    /**
+     * The objectives of the archive members in the order returned by
+     * <code>Objectives.array()</code>, i.e. not normalized but already
+     * transformed to minimization objectives. The objectives of the member
+     * with index i are stored at memberObjectives[i * objectiveCount] to
+     * memberObjectives[(i + 1) * objectiveCount - 1]. Allocated once the
+     * number of objectives is known.
+     */
+    private double[] memberObjectives;
+    private Objective[] objectives;
+    private int objectiveCount;
+
+    /**
+     * Normalization parameters per objective, taken from the
+     * {@link Normalizer} whenever the member sums are recomputed. A raw
+     * objective value v is normalized as (v - offset) * scale.
+     */
+    private double[] offsets;
+    private double[] scales;
+
+    /**
+     * The normalized objectives of the archive members stored objective by
+     * objective, i.e. objective k of the member with index i is stored at
+     * normalizedObjectives[k * capacity + i]. This way the inner loop of
+     * <code>squaredDistancesTo</code> runs over consecutive members which
+     * allows the JIT compiler to vectorize it. Refreshed whenever the member
+     * sums are recomputed and when a member is added while the cache is valid.
+     */
+    private double[] normalizedObjectives;
+    /**
+     * The value of the scalarization function for each member, only used
+     * when it is separable. Updated together with normalizedObjectives.
+     */
+    private final double[] memberCharges;
+
+    // Scratch space used by the thread calling into the cache, avoids
+    // allocations in the inner loops.
+    private double[] normalizedA;
+    private double[] normalizedB;
+    private final double[] squaredDistances;
 
     // Saves candidate information for Listener callbacks.
     private Individual candidate;
     private final double[] candidateSummands;
+    /**
+     * The summands of a removed member if memberSummands is null.
+     */
+    private final double[] removedSummands;
 
     private final MutationStrategy mutationStrategy;
+    /**
+     * Determines how the member sums are updated when a member is removed.
+     * INVERSE substracts the summand, RECALCULATE sums up the remaining
+     * summands again. COMPENSATED substracts the summand but keeps a
+     * compensation term per sum (Neumaier summation) and regularly audits a few
+     * sums against their recalculated value.
+     */
     public enum MutationStrategy {
         INVERSE,
-        RECALCULATE;
+        RECALCULATE,
+        COMPENSATED;
     }
 
+    /**
+     * Used by the COMPENSATED strategy, memberSums[i] always equals
+     * uncompensatedSums[i] + sumCompensations[i].
+     */
+    private final double[] uncompensatedSums;
+    private final double[] sumCompensations;
+    /**
+     * The number of mutations after which the COMPENSATED strategy audits
+     * some sums.
+     */
+    private final int driftAuditInterval;
+    /**
+     * The number of sums recalculated by each audit.
+     */
+    private static final int DRIFT_AUDIT_ROWS = 4;
+    /**
+     * If the relative difference between an audited sum and its recalculated
+     * value exceeds this tolerance, all sums are recalculated.
+     */
+    private final double driftTolerance;
+    private int mutationsSinceAudit;
+    private int nextAuditedIndex;
+    private double lastObservedDrift;
+    private double maxObservedDrift;
+    private int driftRebuilds;
+
+    /**
+     * Whether <code>replacementIndexFor</code> first tries to prove that the
+     * candidate can not replace any member using only the members close to
+     * it.
+     */
+    private final boolean earlyRejection;
+    /**
+     * The indices of all members, sorted by their first (raw) objective. Since
+     * normalization preserves the order it stays valid when the cache is
+     * invalidated. Only maintained if earlyRejection is enabled.
+     */
+    private final int[] firstObjectiveOrder;
+    private int firstObjectiveOrderSize;
+    /**
+     * The number of members for which the exact summand is computed before
+     * bounding the others.
+     */
+    private static final int EARLY_REJECTION_VISITED = 16;
+    /**
+     * Relative safety margin for the rejection bound, covers the rounding
+     * errors made when summing up at most capacity positive summands in
+     * different orders and when recovering distances from stored summands.
+     */
+    private final double earlyRejectionMargin;
+    private final int[] visitedMarks;
+    private int earlyRejectionMark;
+    private int earlyRejections;
+
+    /**
+     * Approximates the member sums and the energies of candidates if the
+     * opening angle is positive, null otherwise. Built when the member sums
+     * are recomputed, follows the modifications of the archive while the
+     * cache is valid and is rebuilt lazily when it can not follow them
+     * anymore.
+     */
+    private final EnergyTree energyTree;
+    private final double approximationAngle;
+    private boolean treeValid;
+    private boolean keysValid;
+    private final int[] treeStack;
+    private final int[] treeIndices;
+    private double lastApproximationError;
+
+    /**
+     * The candidates of the current batch, see <code>prepareBatch</code>.
+     */
+    private Individual[] batchCandidates;
+    private int batchSize;
+    /**
+     * The first candidate of the batch for which no decision has been made.
+     */
+    private int batchNext;
+    private boolean batchValid;
+    /**
+     * The summands between the batch candidates and the members, the summand
+     * for candidate t and the member with index i is stored at
+     * batchSummands[t * capacity + i].
+     */
+    private double[] batchSummands;
+    /**
+     * The normalized objectives of the batch candidates, objective k of
+     * candidate t is stored at batchNormalized[t * objectiveCount + k].
+     */
+    private double[] batchNormalized;
+    private double[] batchCharges;
+    /**
+     * Limits the size of batchSummands.
+     */
+    private static final int BATCH_SUMMANDS = 1 << 20;
+
+    /**
+     * Used to recompute the member sums in parallel, null if the cache is
+     * rebuilt by the calling thread only.
+     */
+    private final ForkJoinPool rebuildPool;
+    /**
+     * Smaller archives are always rebuilt sequentially since splitting the
+     * work does not pay off.
+     */
+    private static final int PARALLEL_REBUILD_MIN_SIZE = 128;
+    /**
+     * The number of tiles created per thread when rebuilding in parallel,
+     * gives the pool some room for balancing.
+     */
+    private static final int TILES_PER_THREAD = 4;
+
     /**
      * @param archive the {@link EnergyArchive} for which the energies will be cached
      * @param scalarizationFunction the {@link ScalarizationFunction} to be used
      * for calculating energies
      * @param normalizer the {@link Normalizer} to be used to normalize
      * objectives before calculating their energies
+     * @param rebuildThreads the number of threads used to recompute the
+     * energies of all members after the cache has been invalidated
+     * @param summandPrecision the type used to store the energies between the
+     * members
+     * @param summandStorage where the energies between the members are stored
+     * @param summandDirectory the directory for the file of a MAPPED summand
+     * matrix, the default temporary-file directory if empty
+     * @param driftAuditInterval the number of mutations after which the
+     * COMPENSATED strategy compares a few sums against their recalculated value
+     * @param driftTolerance the relative difference between a sum and its
+     * recalculated value above which the COMPENSATED strategy recalculates all
+     * sums
+     * @param earlyRejection whether candidates shall be rejected as soon as it
+     * can be proven from the members close to them that they can not replace
+     * any member
+     * @param approximationAngle if positive, the energies are approximated
+     * using an {@link EnergyTree} with this opening angle, the summands are
+     * then never stored; requires a separable scalarization function
+     * @param compactSlots whether the members are kept in the lowest indices
      */
     public EnergyCache(EnergyArchive archive,
                        ScalarizationFunction scalarizationFunction,
                        Normalizer normalizer,
-                       MutationStrategy mutationStrategy)
+                       MutationStrategy mutationStrategy,
+                       int rebuildThreads,
+                       SummandMatrix.Precision summandPrecision,
+                       SummandMatrix.Storage summandStorage,
+                       String summandDirectory,
+                       int driftAuditInterval,
+                       double driftTolerance,
+                       boolean earlyRejection,
+                       double approximationAngle,
+                       boolean compactSlots)
     {
         this.mutationStrategy = mutationStrategy;
+        this.driftAuditInterval = driftAuditInterval;
+        this.driftTolerance = driftTolerance;
+        this.rebuildPool = rebuildThreads > 1 ? new ForkJoinPool(rebuildThreads) : null;
         this.scalarizationFunction = scalarizationFunction;
+        this.separable = scalarizationFunction.isSeparable();
         this.normalizer = normalizer;
-        this.normalizer.cache = this; // allows the normalizer to call invalidate
 
         archive.addListener(this);
         this.capacity = archive.getCapacity();
 
-        indexMap = new IndexMap(capacity);
+        this.compactSlots = compactSlots;
+        indexMap = new IndexMap(capacity, compactSlots);
         cacheValid = false;
-        memberSummands = new double[capacity][];
-        for (int i = 0; i < memberSummands.length; i++) {
-            memberSummands[i] = new double[i];
+        if (approximationAngle > 0 && !separable) {
+            throw new IllegalArgumentException("Approximating energies requires a separable scalarization function");
         }
+        this.approximationAngle = approximationAngle;
+        energyTree = approximationAngle > 0 ? new EnergyTree(capacity) : null;
+        treeValid = false;
+        treeStack = energyTree != null ? energyTree.newStack() : null;
+        treeIndices = energyTree != null ? new int[capacity] : null;
+
+        memberSummands = summandStorage == SummandMatrix.Storage.NONE || energyTree != null
+            ? null
+            : SummandMatrix.create(capacity, summandPrecision, summandStorage,
+                                   summandDirectory.isEmpty() ? null : new File(summandDirectory));
         memberSums = new double[capacity];
+        snapshotEnergies = new double[capacity];
+        snapshotValid = false;
+
+        this.earlyRejection = earlyRejection;
+        firstObjectiveOrder = earlyRejection ? new int[capacity] : null;
+        firstObjectiveOrderSize = 0;
+        visitedMarks = earlyRejection ? new int[capacity] : null;
+        earlyRejectionMark = 0;
+        earlyRejectionMargin = 4 * capacity * Math.ulp(1.0)
+            + 16 * (summandPrecision == SummandMatrix.Precision.FLOAT
+                    ? Math.ulp(1.0f) : Math.ulp(1.0));
+        if (mutationStrategy == MutationStrategy.COMPENSATED) {
+            uncompensatedSums = new double[capacity];
+            sumCompensations = new double[capacity];
+        } else {
+            uncompensatedSums = null;
+            sumCompensations = null;
+        }
+        memberCharges = new double[capacity];
 
         candidate = null;
         candidateSummands = new double[capacity];
+        removedSummands = memberSummands == null ? new double[capacity] : null;
+        squaredDistances = new double[capacity];
     }
 
     /**
-     * Used by the {@link Normalizer} to notify the cache that the normalized
-     * objectives returned so far are no longer valid. The next time
-     * <code>replacementEnergiesFor</code> or <code>energyIntroducedBy</code> is
-     * called, the energies of all archive members will be recomputed.
+     * Notifies the cache that the normalized objectives returned so far are no
+     * longer valid. The next time <code>replacementIndexFor</code> or
+     * <code>energyIntroducedBy</code> is called, the energies of all archive
+     * members will be recomputed.
      */
     public void invalidate() {
         cacheValid = false;
+        batchValid = false;
+        treeValid = false;
     }
 
     /**
-     * Calculates the potential energies introduced by the candidate if it was
-     * to replace a member for every individual in the archive. In case the
-     * candidate actually makes it into the archive, the corresponding call to
-     * add it to the archive call will be very fast when no other call to this
-     * function or <code>add</code> are been made in the meantime.
+     * Invalidates the cache if the {@link Normalizer} changed its bounds since
+     * the member sums were recomputed. The bounds may be changed by other
+     * threads at any time, a change during a call into the cache is therefore
+     * only noticed by the next call.
+     *
+     * @return whether the cache is valid
+     */
+    private boolean isValid() {
+        if (cacheValid && normalizer.getEpoch() != normalizationEpoch) {
+            invalidate();
+        }
+        return cacheValid;
+    }
+
+    /**
+     * Determines the archive member the candidate should replace. For every
+     * member a, the energy e(a) it introduces into the archive is compared to
+     * the energy e_{-a}(p) the candidate p would introduce if it replaced a.
+     * Among the members with e(a) &gt; e_{-a}(p), the one preferred by the
+     * replacement strategy is chosen (in case of a tie the one with the
+     * smallest index). Does not allocate any objects. In case the candidate
+     * actually makes it into the archive, the corresponding call to add it to
+     * the archive will be very fast when no other call to this function or
+     * <code>add</code> are been made in the meantime.
      *
      * @param candidate a <code>individual</code> that is part of the
      * pareto-front and which may enter the archive if it decreases it's overall
      * energy
-     * @return a collection of {@link EnergyArchive.RemovalOption} objects
+     * @param strategy determines the member chosen if there are multiple ones
+     * that could be replaced
+     * @return the index of the member to be replaced (see
+     * <code>member(int)</code>) or -1 if no member introduces more energy than
+     * the candidate would
      */
-    public Collection<EnergyArchive.RemovalOption>
-        replacementEnergiesFor(final Individual candidate)
+    public int replacementIndexFor(final Individual candidate,
+                                   final EnergyArchive.ReplacementStrategy strategy)
     {
-        if (!cacheValid) {
+        if (!isValid()) {
             updateMemberSums();
         }
-        final double[] candidateSums = candidateSums(candidate);
+        if (earlyRejection && provablyRejected(candidate)) {
+            // candidateSummands are incomplete.
+            this.candidate = null;
+            earlyRejections++;
+            return -1;
+        }
+        if (energyTree != null) {
+            return approximatedReplacementIndex(candidate, strategy);
+        }
+        final double total = updateCandidateSummands(candidate);
+        return replacementIndex(total, strategy);
+    }
 
-        final List<EnergyArchive.RemovalOption> energies =
-            new ArrayList<EnergyArchive.RemovalOption>(capacity);
-        for (final IndexMap.Entry entry : indexMap) {
-            final int index = entry.index;
-            energies.add(new EnergyArchive.RemovalOption(memberSums[index],
-                                                         candidateSums[index],
-                                                         entry.individual));
+    /**
+     * Same as <code>replacementIndexFor</code> but approximates the energy
+     * the candidate introduces and only computes the summands of the members
+     * the {@link EnergyTree} can not rule out.
+     */
+    private int approximatedReplacementIndex(final Individual candidate,
+                                             final EnergyArchive.ReplacementStrategy strategy)
+    {
+        if (!treeValid) {
+            energyTree.build(indexMap, normalizedObjectives, memberCharges,
+                             memberSums, objectiveCount);
+            treeValid = true;
+            keysValid = true;
+        } else if (!keysValid) {
+            energyTree.updateKeys();
+            keysValid = true;
+        }
+        // candidateSummands will be incomplete.
+        this.candidate = null;
+
+        final double[] candidateObjectives = candidate.getObjectives().array();
+        for (int k = 0; k < objectiveCount; k++) {
+            normalizedA[k] = normalize(candidateObjectives[k], k);
+        }
+        final double candidateCharge = charge(normalizedA);
+        final double total = energyTree.potential(normalizedA, candidateCharge, -1,
+                                                  approximationAngle, treeStack);
+        final int count = energyTree.replaceable(normalizedA, candidateCharge, total,
+                                                 treeIndices, candidateSummands);
+
+        int replacementIndex = -1;
+        double maxPreference = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            final int index = treeIndices[i];
+            final double memberEnergy = memberSums[index];
+            final double candidateEnergy = total - candidateSummands[index];
+            if (!(memberEnergy > candidateEnergy)) {
+                continue;
+            }
+            final double preference = preference(strategy, memberEnergy, candidateEnergy);
+            // The members are not visited in the order of their indices.
+            if (preference > maxPreference
+                || (preference == maxPreference && index < replacementIndex))
+            {
+                replacementIndex = index;
+                maxPreference = preference;
+            }
+        }
+        return replacementIndex;
+    }
+
+    private static double preference(final EnergyArchive.ReplacementStrategy strategy,
+                                     final double memberEnergy,
+                                     final double candidateEnergy)
+    {
+        switch (strategy) {
+        case BEST_FEASIBLE_POSITION:
+            return -candidateEnergy;
+        case WORST_IN_ARCHIVE:
+            return memberEnergy;
+        default: // LARGEST_ENERGY_DECREASE
+            return memberEnergy - candidateEnergy;
+        }
+    }
+
+    /**
+     * Compares the member sums against the sums computed using the exact
+     * kernel. Takes quadratic time.
+     *
+     * @return the largest relative difference, only caused by rounding if
+     * the energies are not approximated
+     */
+    public double measureApproximationError()
+    {
+        if (!isValid()) {
+            updateMemberSums();
+        }
+        double error = 0;
+        for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+            final double exact = recalculatedSum(index);
+            final double difference = Math.abs(memberSums[index] - exact);
+            error = Math.max(error, exact == 0 ? difference : difference / Math.abs(exact));
+        }
+        lastApproximationError = error;
+        return error;
+    }
+
+    /**
+     * @return the result of the latest call to
+     * <code>measureApproximationError</code>
+     */
+    public double getLastApproximationError() {
+        return lastApproximationError;
+    }
+
+    /**
+     * Performs the decision described in <code>replacementIndexFor</code>
+     * after candidateSummands have been computed. Whether a member can be
+     * replaced depends on its summand with the candidate, all members have
+     * to be visited even if they were ordered by their energy.
+     *
+     * @param total the sum of all candidateSummands
+     */
+    private int replacementIndex(final double total,
+                                 final EnergyArchive.ReplacementStrategy strategy)
+    {
+        int replacementIndex = -1;
+        double maxPreference = Double.NEGATIVE_INFINITY;
+        for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+            final double memberEnergy = memberSums[index];
+            final double candidateEnergy = total - candidateSummands[index];
+            if (!(memberEnergy > candidateEnergy)) {
+                continue;
+            }
+
+            final double preference = preference(strategy, memberEnergy, candidateEnergy);
+            if (preference > maxPreference) {
+                replacementIndex = index;
+                maxPreference = preference;
+            }
+        }
+        return replacementIndex;
+    }
+
+    /**
+     * @return the maximum number of candidates that may be passed to
+     * <code>prepareBatch</code>
+     */
+    public int getBatchCapacity()
+    {
+        return Math.max(1, BATCH_SUMMANDS / capacity);
+    }
+
+    /**
+     * Computes the summands between all given candidates and all archive
+     * members in one pass (in parallel if the cache uses multiple threads for
+     * rebuilding). Afterwards <code>batchReplacementIndexFor</code> can be
+     * used to decide for each candidate (in order) which member it replaces.
+     * When a candidate is added to the archive, only the summands between the
+     * new member and the remaining candidates are computed. The decisions are
+     * the same <code>replacementIndexFor</code> would make for each candidate.
+     *
+     * @param candidates at most <code>getBatchCapacity()</code> candidates
+     */
+    public void prepareBatch(final List<Individual> candidates)
+    {
+        assert candidates.size() <= getBatchCapacity() : "Batch too large";
+        if (!isValid()) {
+            updateMemberSums();
+        }
+        if (batchSummands == null) {
+            final int batchCapacity = getBatchCapacity();
+            batchCandidates = new Individual[batchCapacity];
+            batchSummands = new double[batchCapacity * capacity];
+            batchNormalized = new double[batchCapacity * objectiveCount];
+            batchCharges = new double[batchCapacity];
+        }
+
+        batchSize = candidates.size();
+        batchNext = 0;
+        for (int t = 0; t < batchSize; t++) {
+            batchCandidates[t] = candidates.get(t);
+        }
+
+        if (runsInParallel() && batchSize > 1
+            && indexMap.size() >= PARALLEL_REBUILD_MIN_SIZE)
+        {
+            final int taskCount = Math.min(batchSize, rebuildPool.getParallelism() * TILES_PER_THREAD);
+            final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(taskCount);
+            for (int task = 0; task < taskCount; task++) {
+                final int start = batchSize * task / taskCount;
+                final int end = batchSize * (task + 1) / taskCount;
+                tasks.add(new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+                        @Override
+                        protected void compute() {
+                            computeBatchRows(start, end,
+                                             new double[objectiveCount],
+                                             new double[capacity],
+                                             new double[objectiveCount]);
+                        }
+                    });
+            }
+            runTiles(tasks);
+        } else {
+            computeBatchRows(0, batchSize, normalizedA, squaredDistances, normalizedB);
+        }
+        batchValid = true;
+    }
+
+    /**
+     * Computes the summands of the batch candidates with the positions start
+     * to end - 1 using the given scratch space.
+     */
+    private void computeBatchRows(final int start, final int end,
+                                  final double[] point,
+                                  final double[] distances,
+                                  final double[] member)
+    {
+        for (int t = start; t < end; t++) {
+            final double[] candidateObjectives = batchCandidates[t].getObjectives().array();
+            for (int k = 0; k < objectiveCount; k++) {
+                point[k] = normalize(candidateObjectives[k], k);
+            }
+            System.arraycopy(point, 0, batchNormalized, t * objectiveCount, objectiveCount);
+            final double charge =
+                separable ? charge(point) : Double.NaN;
+            batchCharges[t] = charge;
+            squaredDistancesTo(point, slotEnd(), distances);
+
+            final int rowOffset = t * capacity;
+            for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+                batchSummands[rowOffset + index] =
+                    energyBetween(point, charge, index, distances[index], member);
+            }
+        }
+    }
+
+    /**
+     * Same as <code>replacementIndexFor</code> for a candidate passed to the
+     * last call of <code>prepareBatch</code>. Must be called for the
+     * candidates in the order they were passed, the archive may only be
+     * modified by replacing the returned member with the candidate.
+     *
+     * @param position the position of the candidate in the batch
+     */
+    public int batchReplacementIndexFor(final int position,
+                                        final EnergyArchive.ReplacementStrategy strategy)
+    {
+        final Individual candidate = batchCandidates[position];
+        if (!batchValid || !isValid()) {
+            batchValid = false;
+            return replacementIndexFor(candidate, strategy);
+        }
+        batchNext = position + 1;
+
+        this.candidate = candidate;
+        System.arraycopy(batchSummands, position * capacity,
+                         candidateSummands, 0, capacity);
+        double total = 0;
+        for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+            total += candidateSummands[index];
+        }
+        return replacementIndex(total, strategy);
+    }
+
+    /**
+     * Computes the summands between the remaining batch candidates and a new
+     * member. Uses the same arithmetic as <code>squaredDistancesTo</code> so
+     * the summands equal the ones computed for a single candidate.
+     */
+    private void updateBatch(final int addedIndex)
+    {
+        for (int t = batchNext; t < batchSize; t++) {
+            final int pointOffset = t * objectiveCount;
+            System.arraycopy(batchNormalized, pointOffset, normalizedA, 0, objectiveCount);
+            double squaredDistance = 0;
+            for (int k = 0; k < objectiveCount; k++) {
+                final double difference =
+                    normalizedA[k] - normalizedObjectives[k * capacity + addedIndex];
+                squaredDistance += difference * difference;
+            }
+            batchSummands[t * capacity + addedIndex] =
+                energyBetween(normalizedA, batchCharges[t], addedIndex,
+                              squaredDistance, normalizedB);
+        }
+    }
+
+    /**
+     * Ends the batch started by <code>prepareBatch</code>.
+     */
+    public void endBatch()
+    {
+        batchValid = false;
+        for (int t = 0; t < batchSize; t++) {
+            batchCandidates[t] = null;
+        }
+        batchSize = 0;
+    }
+
+    /**
+     * Tries to prove that the candidate can not replace any member without
+     * computing all summands between it and the members. Only the members
+     * closest to the candidate with respect to the first objective are
+     * visited, the nearest of them (the pivot p) is used to bound the
+     * remaining summands. By the triangle inequality, the distance between the
+     * candidate c and a member j is at most d(c, p) + d(p, j). The distance
+     * d(p, j) can be obtained from the stored summand of p and j, this way a
+     * lower bound for each summand is found in constant time.
+     * <p>
+     * If the candidate replaced member a, it would introduce its total energy
+     * minus the summand for a. Once the lower bound of this energy is not
+     * smaller than the energy of a for all members, no member can be replaced.
+     * Only possible for separable scalarization functions. Does not modify
+     * candidateSummands.
+     *
+     * @return true if it has been proven that the candidate can not replace
+     * any member
+     */
+    private boolean provablyRejected(final Individual candidate)
+    {
+        if (!separable || firstObjectiveOrderSize <= EARLY_REJECTION_VISITED) {
+            return false;
+        }
+        final double[] candidateObjectives = candidate.getObjectives().array();
+        for (int k = 0; k < objectiveCount; k++) {
+            normalizedA[k] = normalize(candidateObjectives[k], k);
+        }
+        final double candidateCharge = charge(normalizedA);
+
+        // Visit the nearest members with respect to the first objective.
+        final double first = candidateObjectives[0];
+        int right = firstObjectivePosition(first);
+        int left = right - 1;
+        earlyRejectionMark++;
+        int pivot = -1;
+        double pivotDistance = Double.POSITIVE_INFINITY;
+        double lowerBound = 0;
+        double maxThreshold = 0;
+        for (int visited = 0; visited < EARLY_REJECTION_VISITED; visited++) {
+            final int index;
+            if (right >= firstObjectiveOrderSize
+                || (left >= 0 && first - firstObjective(left) <= firstObjective(right) - first)) {
+                index = firstObjectiveOrder[left--];
+            } else {
+                index = firstObjectiveOrder[right++];
+            }
+            visitedMarks[index] = earlyRejectionMark;
+
+            double squaredDistance = 0;
+            for (int k = 0; k < objectiveCount; k++) {
+                final double difference = normalizedA[k] - normalizedObjectives[k * capacity + index];
+                squaredDistance += difference * difference;
+            }
+            final double summand = energyBetween(normalizedA, candidateCharge, index,
+                                                 squaredDistance, normalizedB);
+            lowerBound += summand;
+            maxThreshold = Math.max(maxThreshold, memberSums[index] + summand);
+
+            final double distance = Math.sqrt(squaredDistance);
+            if (distance < pivotDistance) {
+                pivot = index;
+                pivotDistance = distance;
+            }
+        }
+
+        // Bound the summands of all other members.
+        final double pivotCharge = memberCharges[pivot];
+        if (memberSummands == null) {
+            gatherNormalized(pivot, normalizedB);
+            squaredDistancesTo(normalizedB, slotEnd(), squaredDistances);
+        }
+        for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+            if (visitedMarks[index] == earlyRejectionMark) {
+                continue;
+            }
+            final double pivotMemberDistance;
+            if (memberSummands == null) {
+                pivotMemberDistance = Math.sqrt(squaredDistances[index]);
+            } else {
+                final double pivotSummand = index > pivot
+                    ? memberSummands.get(index, pivot)
+                    : memberSummands.get(pivot, index);
+                pivotMemberDistance = pivotCharge * memberCharges[index] / pivotSummand;
+            }
+            final double summandBound =
+                candidateCharge * memberCharges[index] / (pivotDistance + pivotMemberDistance);
+            lowerBound += summandBound;
+            maxThreshold = Math.max(maxThreshold, memberSums[index] + summandBound);
+        }
+
+        // Fails for NaN (e.g. a candidate equal to a member).
+        return lowerBound - maxThreshold > lowerBound * earlyRejectionMargin;
+    }
+
+    private double firstObjective(final int position)
+    {
+        return memberObjectives[firstObjectiveOrder[position] * objectiveCount];
+    }
+
+    /**
+     * @return the first position in firstObjectiveOrder whose member has a
+     * first objective not smaller than the given one
+     */
+    private int firstObjectivePosition(final double first)
+    {
+        int low = 0;
+        int high = firstObjectiveOrderSize;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (firstObjective(middle) < first) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void addToFirstObjectiveOrder(final int index)
+    {
+        final int position = firstObjectivePosition(memberObjectives[index * objectiveCount]);
+        System.arraycopy(firstObjectiveOrder, position,
+                         firstObjectiveOrder, position + 1,
+                         firstObjectiveOrderSize - position);
+        firstObjectiveOrder[position] = index;
+        firstObjectiveOrderSize++;
+    }
+
+    private void removeFromFirstObjectiveOrder(final int index)
+    {
+        int position = 0;
+        while (firstObjectiveOrder[position] != index) {
+            position++;
+        }
+        firstObjectiveOrderSize--;
+        System.arraycopy(firstObjectiveOrder, position + 1,
+                         firstObjectiveOrder, position,
+                         firstObjectiveOrderSize - position);
+    }
+
+    /**
+     * @return how many candidates have been rejected without computing all
+     * their summands
+     */
+    public int getEarlyRejections() {
+        return earlyRejections;
+    }
+
+    /**
+     * Releases the threads used to rebuild the cache in parallel. The cache
+     * remains usable, later rebuilds are done by the calling thread.
+     */
+    public void shutdown()
+    {
+        if (rebuildPool != null) {
+            rebuildPool.shutdownNow();
         }
+    }
+
+    private boolean runsInParallel()
+    {
+        return rebuildPool != null && !rebuildPool.isShutdown();
+    }
 
-        return energies;
+    /**
+     * @param index an index returned by <code>replacementIndexFor</code>
+     * @return the archive member with the given index
+     */
+    public Individual member(final int index)
+    {
+        return indexMap.get(index);
     }
 
     /**
@@ -165,58 +916,294 @@ public class EnergyCache implements IndividualSetListener {
      */
     public double energyIntroducedBy(final Individual individual)
     {
-        if (!cacheValid) {
+        if (!isValid()) {
             updateMemberSums();
         }
         return memberSums[indexMap.get(individual)];
     }
 
+    /**
+     * Updates the cache when needed and saves the energies of all members.
+     * Until the archive is modified, <code>snapshotEnergyOf</code> returns
+     * these energies even if the cache is invalidated in the meantime, e.g.
+     * all selections made within one generation see the same energies.
+     */
+    public void takeSnapshot()
+    {
+        if (!isValid()) {
+            updateMemberSums();
+        }
+        for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+            snapshotEnergies[index] = memberSums[index];
+        }
+        snapshotValid = true;
+    }
+
+    /**
+     * @param individual the archive member
+     * @return the energy introduced by the given member at the time of the
+     * latest snapshot, a new snapshot is taken if the archive has been
+     * modified since
+     */
+    public double snapshotEnergyOf(final Individual individual)
+    {
+        if (!snapshotValid) {
+            takeSnapshot();
+        }
+        return snapshotEnergies[indexMap.get(individual)];
+    }
+
     private void updateMemberSums()
     {
-        for (final IndexMap.Entry rowEntry : indexMap) {
-            final int rowIndex = rowEntry.index;
-            final Objectives rowObjectives = rowEntry.individual.getObjectives();
+        // Read before the bounds, a concurrent change invalidates the result.
+        normalizationEpoch = normalizer.getEpoch();
+        if (objectives != null) {
+            normalizer.bounds(objectives, offsets, scales);
+        }
+        for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+            normalizeMember(index);
+        }
 
-            memberSums[rowIndex] = 0;
+        if (energyTree != null) {
+            energyTree.build(indexMap, normalizedObjectives, memberCharges,
+                             memberSums, objectiveCount);
+        }
+        if (runsInParallel() && indexMap.size() >= PARALLEL_REBUILD_MIN_SIZE) {
+            if (memberSummands == null) {
+                runTiles(sumReductions());
+            } else {
+                updateMemberSumsParallel();
+            }
+        } else if (energyTree != null) {
+            for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+                memberSums[index] = approximatedSum(index, normalizedA, treeStack);
+            }
+        } else {
+            updateMemberSumsSequential();
+        }
+        if (mutationStrategy == MutationStrategy.COMPENSATED) {
+            resetCompensations();
+        }
+        if (energyTree != null) {
+            energyTree.updateKeys();
+            treeValid = true;
+            keysValid = true;
+        }
+        cacheValid = true;
+    }
 
-            final Iterator<IndexMap.Entry> columnIterator = indexMap.iteratorTo(rowIndex);
-            while (columnIterator.hasNext()) {
-                final IndexMap.Entry columnEntry = columnIterator.next();
-                final int columnIndex = columnEntry.index;
-                final Objectives columnObjectives = columnEntry.individual.getObjectives();
+    private void updateMemberSumsSequential()
+    {
+        for (int rowIndex = indexMap.nextSlot(-1); rowIndex >= 0; rowIndex = indexMap.nextSlot(rowIndex)) {
+            gatherNormalized(rowIndex, normalizedA);
+            final double rowCharge = memberCharges[rowIndex];
+            squaredDistancesTo(normalizedA, rowIndex, squaredDistances);
+
+            memberSums[rowIndex] = 0;
 
-                final double summand = energyBetween(rowObjectives, columnObjectives);
+            for (int columnIndex = indexMap.nextSlot(-1, rowIndex); columnIndex >= 0;
+                 columnIndex = indexMap.nextSlot(columnIndex, rowIndex)) {
+                double summand = energyBetween(normalizedA, rowCharge, columnIndex,
+                                               squaredDistances[columnIndex], normalizedB);
+                if (memberSummands != null) {
+                    summand = memberSummands.set(rowIndex, columnIndex, summand);
+                }
                 memberSums[rowIndex] += summand;
                 memberSums[columnIndex] += summand;
-                memberSummands[rowIndex][columnIndex] = summand;
             }
         }
-        cacheValid = true;
     }
 
-    private double[] candidateSums(final Individual candidate)
+    /**
+     * Fills memberSummands using one task per tile of rows, then sums up the
+     * rows. The tiles are chosen so that each covers about the same area of
+     * the triangular matrix. Each member sum is accumulated in the same order
+     * as in <code>updateMemberSumsSequential</code> (ascending index of the
+     * other member), the result is therefore independent of the number of
+     * threads.
+     */
+    private void updateMemberSumsParallel()
     {
-        final double total = updateCandidateSummands(candidate);
-        final double[] candidateSums = new double[capacity];
-        for (int i = 0; i < candidateSums.length; i++) {
-            candidateSums[i] = total - candidateSummands[i];
+        final int tileCount = rebuildPool.getParallelism() * TILES_PER_THREAD;
+
+        final List<RecursiveAction> tiles = new ArrayList<RecursiveAction>(tileCount);
+        int start = 0;
+        for (int tile = 1; tile <= tileCount; tile++) {
+            // Row i contains i summands, the area up to row r is r^2/2.
+            final int end = (int) Math.ceil(slotEnd() * Math.sqrt((double) tile / tileCount));
+            if (end > start) {
+                tiles.add(new SummandTile(start, end));
+                start = end;
+            }
+        }
+        runTiles(tiles);
+        runTiles(sumReductions());
+    }
+
+    /**
+     * @return tasks recalculating the sums of all members
+     */
+    private List<RecursiveAction> sumReductions()
+    {
+        final int tileCount = rebuildPool.getParallelism() * TILES_PER_THREAD;
+        final int end = slotEnd();
+        final List<RecursiveAction> reductions = new ArrayList<RecursiveAction>(tileCount);
+        for (int tile = 0; tile < tileCount; tile++) {
+            final int reductionStart = (int) ((long) end * tile / tileCount);
+            final int reductionEnd = (int) ((long) end * (tile + 1) / tileCount);
+            if (reductionEnd > reductionStart) {
+                reductions.add(new SumReduction(reductionStart, reductionEnd));
+            }
+        }
+        return reductions;
+    }
+
+    private void runTiles(final List<RecursiveAction> tasks)
+    {
+        rebuildPool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+    }
+
+    /**
+     * Computes the summands for all members whose index is in the given range
+     * and all members with a smaller index.
+     */
+    private class SummandTile extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int start;
+        private final int end;
+
+        public SummandTile(final int start, final int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            final double[] row = new double[objectiveCount];
+            final double[] column = new double[objectiveCount];
+            final double[] rowDistances = new double[end];
+
+            for (int rowIndex = indexMap.nextSlot(start - 1, end); rowIndex >= 0;
+                 rowIndex = indexMap.nextSlot(rowIndex, end)) {
+                gatherNormalized(rowIndex, row);
+                final double rowCharge = memberCharges[rowIndex];
+                squaredDistancesTo(row, rowIndex, rowDistances);
+
+                for (int columnIndex = indexMap.nextSlot(-1, rowIndex); columnIndex >= 0;
+                     columnIndex = indexMap.nextSlot(columnIndex, rowIndex)) {
+                    memberSummands.set(rowIndex, columnIndex,
+                                       energyBetween(row, rowCharge, columnIndex,
+                                                     rowDistances[columnIndex], column));
+                }
+            }
+        }
+    }
+
+    /**
+     * Sums up the summands of all members whose index is in the given range.
+     */
+    private class SumReduction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int start;
+        private final int end;
+
+        public SumReduction(final int start, final int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            final double[] point = new double[objectiveCount];
+            if (energyTree != null) {
+                final int[] stack = energyTree.newStack();
+                for (int rowIndex = indexMap.nextSlot(start - 1, end); rowIndex >= 0;
+                     rowIndex = indexMap.nextSlot(rowIndex, end)) {
+                    memberSums[rowIndex] = approximatedSum(rowIndex, point, stack);
+                }
+                return;
+            }
+
+            final double[] distances = memberSummands == null ? new double[capacity] : null;
+            final double[] member = new double[objectiveCount];
+            for (int rowIndex = indexMap.nextSlot(start - 1, end); rowIndex >= 0;
+                 rowIndex = indexMap.nextSlot(rowIndex, end)) {
+                memberSums[rowIndex] = recalculatedSum(rowIndex, point, distances, member);
+            }
         }
-        return candidateSums;
+    }
+
+    private double approximatedSum(final int memberIndex,
+                                   final double[] point,
+                                   final int[] stack)
+    {
+        gatherNormalized(memberIndex, point);
+        return energyTree.potential(point, memberCharges[memberIndex], memberIndex,
+                                    approximationAngle, stack);
+    }
+
+    private double recalculatedSum(final int memberIndex)
+    {
+        return recalculatedSum(memberIndex, normalizedA, squaredDistances, normalizedB);
+    }
+
+    /**
+     * Sums up the summands of the member with the given index in ascending
+     * order of the other members index. If the summands are not stored they
+     * are recomputed using the given scratch space.
+     */
+    private double recalculatedSum(final int memberIndex,
+                                   final double[] point,
+                                   final double[] distances,
+                                   final double[] member)
+    {
+        double sum = 0;
+        if (memberSummands == null) {
+            gatherNormalized(memberIndex, point);
+            squaredDistancesTo(point, slotEnd(), distances);
+            final double charge = separable ? memberCharges[memberIndex] : Double.NaN;
+            for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+                if (index != memberIndex) {
+                    sum += energyBetween(point, charge, index, distances[index], member);
+                }
+            }
+            return sum;
+        }
+        for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+            if (index < memberIndex) {
+                sum += memberSummands.get(memberIndex, index);
+            } else if (index > memberIndex) {
+                sum += memberSummands.get(index, memberIndex);
+            }
+        }
+        return sum;
     }
 
     private double updateCandidateSummands(final Individual candidate)
     {
         this.candidate = candidate;
 
-        final Objectives candidateObjectives = candidate.getObjectives();
+        // Objectives caches the array, this does not allocate.
+        final double[] candidateObjectives = candidate.getObjectives().array();
+        for (int k = 0; k < objectiveCount; k++) {
+            normalizedA[k] = normalize(candidateObjectives[k], k);
+        }
+        final double candidateCharge =
+            separable ? charge(normalizedA) : Double.NaN;
+        squaredDistancesTo(normalizedA, slotEnd(), squaredDistances);
 
         double total = 0;
-        for (final IndexMap.Entry entry : indexMap) {
-            final int index = entry.index;
-            final Objectives memberObjectives = entry.individual.getObjectives();
+        for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
 
             final double summand =
-                energyBetween(candidateObjectives, memberObjectives);
+                energyBetween(normalizedA, candidateCharge, index,
+                              squaredDistances[index], normalizedB);
             total += summand;
             candidateSummands[index] = summand;
         }
@@ -232,32 +1219,89 @@ public class EnergyCache implements IndividualSetListener {
                                 final Individual added)
     {
         final int addedIndex = indexMap.put(added);
-        if (cacheValid) {
+        snapshotValid = false;
+        storeObjectives(addedIndex, added);
+        if (earlyRejection) {
+            addToFirstObjectiveOrder(addedIndex);
+        }
+        if (isValid()) {
+            normalizeMember(addedIndex);
             if (added != candidate) {
                 updateCandidateSummands(added);
             }
             memberSums[addedIndex] = 0;
-            for (final IndexMap.Entry entry : indexMap) {
-                mergeCandidateSummand(addedIndex, entry.index);
+            if (mutationStrategy == MutationStrategy.COMPENSATED) {
+                uncompensatedSums[addedIndex] = 0;
+                sumCompensations[addedIndex] = 0;
+            }
+            for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+                mergeCandidateSummand(addedIndex, index);
+            }
+            if (treeValid) {
+                treeValid = energyTree.add(addedIndex);
+                keysValid = false;
             }
+            if (batchValid) {
+                updateBatch(addedIndex);
+            }
+            mutated();
         }
     }
 
+    /**
+     * @return an upper bound (exclusive) for the indices of all members
+     */
+    private int slotEnd()
+    {
+        return compactSlots ? indexMap.end() : capacity;
+    }
+
+    private void storeObjectives(final int index, final Individual individual)
+    {
+        final double[] array = individual.getObjectives().array();
+        if (objectives == null) {
+            objectives = individual.getObjectives().getKeys().toArray(new Objective[0]);
+            objectiveCount = objectives.length;
+            memberObjectives = new double[capacity * objectiveCount];
+            normalizedObjectives = new double[objectiveCount * capacity];
+            offsets = new double[objectiveCount];
+            scales = new double[objectiveCount];
+            normalizedA = new double[objectiveCount];
+            normalizedB = new double[objectiveCount];
+            final double[] worst = new double[objectiveCount];
+            Arrays.fill(worst, 1.0);
+            minCharge = Math.max(MIN_RELATIVE_CHARGE * scalarizationFunction.charge(worst, objectives),
+                                 Double.MIN_NORMAL);
+            minPairwise = separable ? Double.NaN
+                : Math.max(MIN_RELATIVE_CHARGE * scalarizationFunction.pairwise(worst, worst, objectives),
+                           Double.MIN_NORMAL);
+            // The bounds have not been fetched from the normalizer yet.
+            cacheValid = false;
+        }
+        assert array.length == objectiveCount : "Individuals differ in their number of objectives";
+        System.arraycopy(array, 0, memberObjectives, index * objectiveCount, objectiveCount);
+    }
+
     private void mergeCandidateSummand(final int addedIndex,
                                        final int memberIndex)
     {
-        final double summand = candidateSummands[memberIndex];
-
-        if (addedIndex > memberIndex) {
-            memberSummands[addedIndex][memberIndex] = summand;
+        final double summand;
+        if (addedIndex == memberIndex) {
+            return;
+        } else if (memberSummands == null) {
+            summand = candidateSummands[memberIndex];
+        } else if (addedIndex > memberIndex) {
+            summand = memberSummands.set(addedIndex, memberIndex,
+                                         candidateSummands[memberIndex]);
         } else if (addedIndex < memberIndex) {
-            memberSummands[memberIndex][addedIndex] = summand;
+            summand = memberSummands.set(memberIndex, addedIndex,
+                                         candidateSummands[memberIndex]);
         } else {
             return;
         }
 
-        memberSums[addedIndex] += summand;
-        memberSums[memberIndex] += summand;
+        addToMemberSum(addedIndex, summand);
+        addToMemberSum(memberIndex, summand);
     }
 
     /**
@@ -269,9 +1313,85 @@ public class EnergyCache implements IndividualSetListener {
                                   final Individual removed)
     {
         final int removedIndex = indexMap.remove(removed);
-        if (cacheValid) {
-            for (final IndexMap.Entry entry : indexMap) {
-                substractMemberFromSum(removedIndex, entry.index, removed);
+        snapshotValid = false;
+        if (earlyRejection) {
+            removeFromFirstObjectiveOrder(removedIndex);
+        }
+        if (isValid()) {
+            if (treeValid) {
+                energyTree.remove(removedIndex);
+                keysValid = false;
+            }
+            if (memberSummands == null && mutationStrategy != MutationStrategy.RECALCULATE) {
+                // The slot still holds the normalized objectives of the
+                // removed member.
+                gatherNormalized(removedIndex, normalizedA);
+                squaredDistancesTo(normalizedA, slotEnd(), squaredDistances);
+                final double removedCharge = separable ? memberCharges[removedIndex] : Double.NaN;
+                for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+                    removedSummands[index] =
+                        energyBetween(normalizedA, removedCharge, index,
+                                      squaredDistances[index], normalizedB);
+                }
+            }
+            for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+                substractMemberFromSum(removedIndex, index, removed);
+            }
+            mutated();
+        }
+        if (compactSlots) {
+            final int movedIndex = indexMap.compact(removedIndex);
+            if (movedIndex >= 0) {
+                moveMember(movedIndex, removedIndex);
+            }
+        }
+    }
+
+    /**
+     * Moves everything stored for the member with index from to the free
+     * index to.
+     */
+    private void moveMember(final int from, final int to)
+    {
+        System.arraycopy(memberObjectives, from * objectiveCount,
+                         memberObjectives, to * objectiveCount, objectiveCount);
+        for (int k = 0; k < objectiveCount; k++) {
+            normalizedObjectives[k * capacity + to] = normalizedObjectives[k * capacity + from];
+        }
+        memberCharges[to] = memberCharges[from];
+        memberSums[to] = memberSums[from];
+        if (mutationStrategy == MutationStrategy.COMPENSATED) {
+            uncompensatedSums[to] = uncompensatedSums[from];
+            sumCompensations[to] = sumCompensations[from];
+        }
+        candidateSummands[to] = candidateSummands[from];
+
+        if (earlyRejection) {
+            int position = 0;
+            while (firstObjectiveOrder[position] != from) {
+                position++;
+            }
+            firstObjectiveOrder[position] = to;
+        }
+        if (!isValid()) {
+            return;
+        }
+        if (memberSummands != null) {
+            // from was the highest index.
+            for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+                if (index < to) {
+                    memberSummands.set(to, index, memberSummands.get(from, index));
+                } else if (index > to) {
+                    memberSummands.set(index, to, memberSummands.get(from, index));
+                }
+            }
+        }
+        if (treeValid) {
+            energyTree.move(from, to);
+        }
+        if (batchValid) {
+            for (int t = batchNext; t < batchSize; t++) {
+                batchSummands[t * capacity + to] = batchSummands[t * capacity + from];
             }
         }
     }
@@ -283,11 +1403,16 @@ public class EnergyCache implements IndividualSetListener {
 
         switch (mutationStrategy) {
         case INVERSE:
+        case COMPENSATED:
             final double summandMinus;
-            if (removedIndex > memberIndex) {
-                summandMinus = memberSummands[removedIndex][memberIndex];
+            if (removedIndex == memberIndex) {
+                return;
+            } else if (memberSummands == null) {
+                summandMinus = removedSummands[memberIndex];
+            } else if (removedIndex > memberIndex) {
+                summandMinus = memberSummands.get(removedIndex, memberIndex);
             } else if (removedIndex < memberIndex) {
-                summandMinus = memberSummands[memberIndex][removedIndex];
+                summandMinus = memberSummands.get(memberIndex, removedIndex);
             } else {
                 return;
             }
@@ -306,32 +1431,223 @@ public class EnergyCache implements IndividualSetListener {
             // recalculate the sum at this point (sum over all remaining archive
             // members). We don't do this here because such large summands only
             // occur in the early archive and get overridden anyway the next time
-            // the normalizer invalidates the cache.
-            memberSums[memberIndex] -= summandMinus;
+            // the normalizer invalidates the cache. The COMPENSATED strategy
+            // keeps track of the lost low-order bits instead.
+            addToMemberSum(memberIndex, -summandMinus);
             break;
         default: // RECALCULATE
-            memberSums[memberIndex] = 0.0;
-
-            for (final IndexMap.Entry entry : indexMap) {
-                final double summandPlus;
-                if (entry.index > memberIndex) {
-                    summandPlus = memberSummands[entry.index][memberIndex];
-                } else if (entry.index < memberIndex) {
-                    summandPlus = memberSummands[memberIndex][entry.index];
-                } else {
-                    continue;
-                }
+            memberSums[memberIndex] = recalculatedSum(memberIndex);
+            break;
+        }
+    }
+
+    private void addToMemberSum(final int memberIndex, final double summand)
+    {
+        if (mutationStrategy != MutationStrategy.COMPENSATED) {
+            memberSums[memberIndex] += summand;
+            return;
+        }
 
-                memberSums[memberIndex] += summandPlus;
+        // Neumaier's variant of Kahan summation.
+        final double sum = uncompensatedSums[memberIndex];
+        final double newSum = sum + summand;
+        if (Math.abs(sum) >= Math.abs(summand)) {
+            sumCompensations[memberIndex] += (sum - newSum) + summand;
+        } else {
+            sumCompensations[memberIndex] += (summand - newSum) + sum;
+        }
+        uncompensatedSums[memberIndex] = newSum;
+        memberSums[memberIndex] = newSum + sumCompensations[memberIndex];
+    }
+
+    private void resetCompensations()
+    {
+        for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+            uncompensatedSums[index] = memberSums[index];
+            sumCompensations[index] = 0;
+        }
+    }
+
+    /**
+     * Called after each modification of the member sums. Every
+     * driftAuditInterval calls, the COMPENSATED strategy compares a few sums
+     * (in round robin order) with their recalculated value and recalculates
+     * all sums if the relative difference exceeds the tolerance.
+     */
+    private void mutated()
+    {
+        // Approximated sums always differ from the recalculated ones.
+        if (mutationStrategy != MutationStrategy.COMPENSATED
+            || energyTree != null
+            || ++mutationsSinceAudit < driftAuditInterval
+            || indexMap.size() == 0)
+        {
+            return;
+        }
+        mutationsSinceAudit = 0;
+
+        double drift = 0;
+        for (int audited = 0; audited < Math.min(DRIFT_AUDIT_ROWS, indexMap.size()); audited++) {
+            while (nextAuditedIndex >= capacity || !indexMap.contains(nextAuditedIndex)) {
+                nextAuditedIndex = nextAuditedIndex >= capacity ? 0 : nextAuditedIndex + 1;
             }
-            break;
+            final double exact = recalculatedSum(nextAuditedIndex);
+            final double difference = Math.abs(memberSums[nextAuditedIndex] - exact);
+            drift = Math.max(drift, exact == 0 ? difference : difference / Math.abs(exact));
+            nextAuditedIndex++;
+        }
+        lastObservedDrift = drift;
+        maxObservedDrift = Math.max(maxObservedDrift, drift);
+
+        if (drift > driftTolerance) {
+            for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+                memberSums[index] = recalculatedSum(index);
+            }
+            resetCompensations();
+            driftRebuilds++;
         }
     }
 
-    private double energyBetween(Objectives a, Objectives b) {
-        a = normalizer.normalize(a);
-        b = normalizer.normalize(b);
-        return scalarizationFunction.calculate(a, b) / a.distance(b);
+    /**
+     * @return the largest relative difference between a member sum and its
+     * recalculated value observed by the audits of the COMPENSATED strategy
+     */
+    public double getMaxObservedDrift() {
+        return maxObservedDrift;
+    }
+
+    /**
+     * @return the relative difference observed by the latest audit of the
+     * COMPENSATED strategy
+     */
+    public double getLastObservedDrift() {
+        return lastObservedDrift;
+    }
+
+    /**
+     * @return how often the COMPENSATED strategy had to recalculate all sums
+     * because the drift exceeded the tolerance
+     */
+    public int getDriftRebuilds() {
+        return driftRebuilds;
+    }
+
+    /**
+     * Calculates the energy between an individual and an archive member.
+     *
+     * @param point the normalized objectives of the individual
+     * @param pointCharge the value of the scalarization function for the
+     * individual, only used if it is separable
+     * @param memberIndex the index of the archive member
+     * @param squaredDistance the squared distance between the two as computed
+     * by <code>squaredDistancesTo</code>
+     * @param member scratch space of length objectiveCount, receives the
+     * normalized objectives of the member if the scalarization function is not
+     * separable
+     */
+    private double energyBetween(final double[] point,
+                                 final double pointCharge,
+                                 final int memberIndex,
+                                 final double squaredDistance,
+                                 final double[] member)
+    {
+        if (separable) {
+            return pointCharge * memberCharges[memberIndex]
+                / Math.sqrt(squaredDistance);
+        }
+        gatherNormalized(memberIndex, member);
+        clampInPlace(member);
+        return Math.max(scalarizationFunction.pairwise(withinBounds(point), member, objectives),
+                        minPairwise)
+            / Math.sqrt(squaredDistance);
+    }
+
+    /**
+     * Computes the squared distances between the given normalized objectives
+     * and the normalized objectives of all members with an index smaller than
+     * <code>end</code>. The distance to the member with index i is stored in
+     * squaredDistances[i], values for unused indices are meaningless.
+     * <p>
+     * The loops are kept free of branches and method calls so the JIT
+     * compiler can turn the inner one into SIMD instructions.
+     */
+    private void squaredDistancesTo(final double[] point, final int end,
+                                    final double[] squaredDistances)
+    {
+        Arrays.fill(squaredDistances, 0, end, 0.0);
+        for (int k = 0; k < objectiveCount; k++) {
+            final double pointK = point[k];
+            final int base = k * capacity;
+            for (int i = 0; i < end; i++) {
+                final double difference = pointK - normalizedObjectives[base + i];
+                squaredDistances[i] += difference * difference;
+            }
+        }
+    }
+
+    private void normalizeMember(final int index)
+    {
+        final int offset = index * objectiveCount;
+        for (int k = 0; k < objectiveCount; k++) {
+            normalizedA[k] = normalize(memberObjectives[offset + k], k);
+            normalizedObjectives[k * capacity + index] = normalizedA[k];
+        }
+        if (separable) {
+            memberCharges[index] = charge(normalizedA);
+        }
+    }
+
+    /**
+     * @return the value of the scalarization function for the normalized
+     * objectives clamped to [0, 1], at least minCharge (see
+     * MIN_RELATIVE_CHARGE)
+     */
+    private double charge(final double[] normalized)
+    {
+        return Math.max(scalarizationFunction.charge(withinBounds(normalized), objectives),
+                        minCharge);
+    }
+
+    /**
+     * @return the given normalized objectives if they are all in [0, 1], a
+     * clamped copy otherwise (only allocated for points beyond the bounds)
+     */
+    private static double[] withinBounds(final double[] normalized)
+    {
+        for (final double value : normalized) {
+            if (!(value >= 0.0 && value <= 1.0)) {
+                final double[] clamped = normalized.clone();
+                clampInPlace(clamped);
+                return clamped;
+            }
+        }
+        return normalized;
+    }
+
+    private static void clampInPlace(final double[] normalized)
+    {
+        for (int k = 0; k < normalized.length; k++) {
+            normalized[k] = Math.min(Math.max(normalized[k], 0.0), 1.0);
+        }
+    }
+
+    private void gatherNormalized(final int index, final double[] normalized)
+    {
+        for (int k = 0; k < objectiveCount; k++) {
+            normalized[k] = normalizedObjectives[k * capacity + index];
+        }
+    }
+
+    /**
+     * Same as {@link Normalizer#normalize(org.opt4j.core.Objectives)} for a
+     * single objective value.
+     */
+    private double normalize(final double value, final int objective)
+    {
+        if (value == Double.MAX_VALUE) {
+            return 1.0; // infeasible
+        }
+        return (value - offsets[objective]) * scales[objective];
     }
 
 }
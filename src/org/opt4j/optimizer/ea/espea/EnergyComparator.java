@@ -32,7 +32,10 @@ import com.google.inject.Inject;
 
 /**
  * Items introducing less energy are sorted before items that introduce more
- * energy. Can only be used to compare archive members.
+ * energy. Can only be used to compare archive members. Uses the energies of
+ * the latest snapshot (see {@link EnergyArchive#takeEnergySnapshot()}), all
+ * comparisons between two modifications of the archive are therefore
+ * consistent.
  * <p>
  * The <code>Archive</code> bound must be a subclass of {@link EnergyArchive}.
  *
@@ -48,8 +51,8 @@ public class EnergyComparator implements Comparator<Individual> {
 
     @Override
     public int compare(final Individual o1, final Individual o2) {
-        final double e1 = archive.energyIntroducedBy(o1);
-        final double e2 = archive.energyIntroducedBy(o2);
+        final double e1 = archive.snapshotEnergyOf(o1);
+        final double e2 = archive.snapshotEnergyOf(o2);
         if (e1 < e2) return -1;
         if (e1 == e2) return 0;
         else return 1;
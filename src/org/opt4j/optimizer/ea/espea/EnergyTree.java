@@ -0,0 +1,501 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+
+package org.opt4j.optimizer.ea.espea;
+
+/**
+ * A k-d tree over the normalized objectives of the members of an {@link
+ * EnergyCache}, used to approximate energies like in the Barnes-Hut
+ * algorithm. Each node stores the total charge (value of the separable
+ * scalarization function) of its members and their charge-weighted centroid.
+ * When computing the energy a point introduces, a node whose diameter is
+ * smaller than the opening angle times the distance between the point and the
+ * centroid is treated as a single member with the total charge located at the
+ * centroid.
+ * <p>
+ * Removed members are subtracted from the charges and centroids of their
+ * nodes, the bounding boxes are kept. Added members are not inserted into the
+ * tree but kept in a short list whose energies are always computed exactly.
+ * Once the list is full, the tree must be rebuilt using <code>build</code>.
+ * After the member sums changed, <code>updateKeys</code> must be called.
+ *
+ * @author luisgerhorst
+ */
+public class EnergyTree {
+
+    private static final int LEAF_SIZE = 8;
+    /**
+     * Enough for the depth of a tree split at the median.
+     */
+    private static final int STACK_SIZE = 2 * 32;
+
+    private final int capacity;
+    private int objectiveCount;
+
+    // Set by build, not copied.
+    private double[] normalized;
+    private double[] charges;
+    private double[] keys;
+
+    /**
+     * The member indices, each node covers a range of it. Members removed
+     * since the tree was built are replaced by -1.
+     */
+    private final int[] order;
+    private int nodeCount;
+    private final int[] nodeStart;
+    private final int[] nodeEnd;
+    /**
+     * The index of the first child, the second one follows it. -1 for leafs.
+     */
+    private final int[] nodeChild;
+    private final int[] nodeParent;
+    private final double[] nodeCharge;
+    private final double[] nodeMaxAbsCharge;
+    private final double[] nodeMaxKey;
+    private final double[] nodeDiameter;
+    // Stored at [node * objectiveCount + k].
+    private double[] nodeMin;
+    private double[] nodeMax;
+    private double[] nodeCentroid;
+
+    /**
+     * The leaf containing each member that was part of the tree when it was
+     * built.
+     */
+    private final int[] leafOf;
+    /**
+     * The members added since the tree was built.
+     */
+    private final int[] added;
+    private int addedCount;
+
+    private final int[] stack = new int[STACK_SIZE];
+
+    /**
+     * @param capacity the number of indices
+     */
+    public EnergyTree(final int capacity) {
+        this.capacity = capacity;
+        order = new int[capacity];
+        final int maxNodes = 2 * Math.max(1, capacity);
+        nodeStart = new int[maxNodes];
+        nodeEnd = new int[maxNodes];
+        nodeChild = new int[maxNodes];
+        nodeParent = new int[maxNodes];
+        nodeCharge = new double[maxNodes];
+        nodeMaxAbsCharge = new double[maxNodes];
+        nodeMaxKey = new double[maxNodes];
+        nodeDiameter = new double[maxNodes];
+        leafOf = new int[capacity];
+        added = new int[Math.min(capacity, Math.max(LEAF_SIZE, 2 * (int) Math.sqrt(capacity)))];
+    }
+
+    /**
+     * @return scratch space for concurrent calls to <code>potential</code>
+     */
+    public int[] newStack() {
+        return new int[STACK_SIZE];
+    }
+
+    /**
+     * Builds the tree over the given members.
+     *
+     * @param indexMap the members
+     * @param normalized the normalized objectives, objective k of member i at
+     * [k * capacity + i]
+     * @param charges the values of the scalarization function of the members
+     * @param keys the member sums, see <code>updateKeys</code>
+     * @param objectiveCount the number of objectives
+     */
+    public void build(final IndexMap indexMap,
+                      final double[] normalized,
+                      final double[] charges,
+                      final double[] keys,
+                      final int objectiveCount)
+    {
+        this.normalized = normalized;
+        this.charges = charges;
+        this.keys = keys;
+        if (nodeMin == null || this.objectiveCount != objectiveCount) {
+            this.objectiveCount = objectiveCount;
+            nodeMin = new double[nodeStart.length * objectiveCount];
+            nodeMax = new double[nodeStart.length * objectiveCount];
+            nodeCentroid = new double[nodeStart.length * objectiveCount];
+        }
+
+        int size = 0;
+        for (int index = indexMap.nextSlot(-1); index >= 0; index = indexMap.nextSlot(index)) {
+            order[size++] = index;
+        }
+        addedCount = 0;
+        nodeCount = 0;
+        if (size > 0) {
+            nodeParent[0] = -1;
+            buildNode(nodeCount++, 0, size);
+            updateKeys();
+        }
+    }
+
+    /**
+     * Notifies the tree that a member was added.
+     *
+     * @return false if the tree has to be rebuilt
+     */
+    public boolean add(final int index)
+    {
+        if (addedCount == added.length) {
+            return false;
+        }
+        added[addedCount++] = index;
+        return true;
+    }
+
+    /**
+     * Notifies the tree that a member was removed. Must be called before the
+     * normalized objectives of the member are overwritten.
+     */
+    public void remove(final int index)
+    {
+        for (int i = 0; i < addedCount; i++) {
+            if (added[i] == index) {
+                added[i] = added[--addedCount];
+                return;
+            }
+        }
+        order[positionOf(index)] = -1;
+
+        final double charge = charges[index];
+        for (int node = leafOf[index]; node >= 0; node = nodeParent[node]) {
+            final double nodeChargeBefore = nodeCharge[node];
+            final double nodeChargeAfter = nodeChargeBefore - charge;
+            final int offset = node * objectiveCount;
+            for (int k = 0; k < objectiveCount; k++) {
+                nodeCentroid[offset + k] = nodeChargeAfter > 0
+                    ? (nodeCentroid[offset + k] * nodeChargeBefore
+                       - charge * normalized[k * capacity + index]) / nodeChargeAfter
+                    : Double.NaN;
+            }
+            nodeCharge[node] = nodeChargeAfter;
+        }
+    }
+
+    /**
+     * Notifies the tree that the objectives and charge of a member have been
+     * copied to another index.
+     */
+    public void move(final int from, final int to)
+    {
+        for (int i = 0; i < addedCount; i++) {
+            if (added[i] == from) {
+                added[i] = to;
+                return;
+            }
+        }
+        order[positionOf(from)] = to;
+        leafOf[to] = leafOf[from];
+    }
+
+    /**
+     * @return the position of a member that was part of the tree when it was
+     * built in order
+     */
+    private int positionOf(final int index)
+    {
+        final int leaf = leafOf[index];
+        int position = nodeStart[leaf];
+        while (order[position] != index) {
+            position++;
+            assert position < nodeEnd[leaf] : "index not part of the tree";
+        }
+        return position;
+    }
+
+    private void buildNode(final int node, final int start, final int end)
+    {
+        nodeStart[node] = start;
+        nodeEnd[node] = end;
+        final int offset = node * objectiveCount;
+
+        double charge = 0;
+        double maxAbsCharge = 0;
+        for (int k = 0; k < objectiveCount; k++) {
+            nodeMin[offset + k] = Double.POSITIVE_INFINITY;
+            nodeMax[offset + k] = Double.NEGATIVE_INFINITY;
+            nodeCentroid[offset + k] = 0;
+        }
+        for (int position = start; position < end; position++) {
+            final int index = order[position];
+            final double memberCharge = charges[index];
+            charge += memberCharge;
+            maxAbsCharge = Math.max(maxAbsCharge, Math.abs(memberCharge));
+            for (int k = 0; k < objectiveCount; k++) {
+                final double value = normalized[k * capacity + index];
+                nodeMin[offset + k] = Math.min(nodeMin[offset + k], value);
+                nodeMax[offset + k] = Math.max(nodeMax[offset + k], value);
+                nodeCentroid[offset + k] += memberCharge * value;
+            }
+        }
+        nodeCharge[node] = charge;
+        nodeMaxAbsCharge[node] = maxAbsCharge;
+
+        double squaredDiameter = 0;
+        int widest = 0;
+        for (int k = 0; k < objectiveCount; k++) {
+            final double extent = nodeMax[offset + k] - nodeMin[offset + k];
+            squaredDiameter += extent * extent;
+            if (extent > nodeMax[offset + widest] - nodeMin[offset + widest]) {
+                widest = k;
+            }
+            // Without positive total charge the centroid is meaningless, the
+            // node is then never approximated.
+            nodeCentroid[offset + k] = charge > 0 ? nodeCentroid[offset + k] / charge : Double.NaN;
+        }
+        nodeDiameter[node] = Math.sqrt(squaredDiameter);
+
+        if (end - start <= LEAF_SIZE || squaredDiameter == 0) {
+            nodeChild[node] = -1;
+            for (int position = start; position < end; position++) {
+                leafOf[order[position]] = node;
+            }
+            return;
+        }
+        final int middle = (start + end) >>> 1;
+        select(start, end, middle, widest);
+        final int child = nodeCount;
+        nodeCount += 2;
+        nodeChild[node] = child;
+        nodeParent[child] = node;
+        nodeParent[child + 1] = node;
+        buildNode(child, start, middle);
+        buildNode(child + 1, middle, end);
+    }
+
+    /**
+     * Partially sorts order[start, end) by the given objective so that the
+     * member at position nth is the one that would be there if it was sorted
+     * completely (quickselect).
+     */
+    private void select(int start, int end, final int nth, final int objective)
+    {
+        final int base = objective * capacity;
+        while (end - start > 1) {
+            final double pivot = normalized[base + order[(start + end) >>> 1]];
+            int left = start;
+            int right = end - 1;
+            while (left <= right) {
+                while (normalized[base + order[left]] < pivot) {
+                    left++;
+                }
+                while (normalized[base + order[right]] > pivot) {
+                    right--;
+                }
+                if (left <= right) {
+                    final int swapped = order[left];
+                    order[left] = order[right];
+                    order[right] = swapped;
+                    left++;
+                    right--;
+                }
+            }
+            if (nth <= right) {
+                end = right + 1;
+            } else if (nth >= left) {
+                start = left;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Recomputes the maximum key of each node after the member sums changed.
+     */
+    public void updateKeys()
+    {
+        // Children are always stored after their parent.
+        for (int node = nodeCount - 1; node >= 0; node--) {
+            final int child = nodeChild[node];
+            if (child >= 0) {
+                nodeMaxKey[node] = Math.max(nodeMaxKey[child], nodeMaxKey[child + 1]);
+                continue;
+            }
+            double maxKey = Double.NEGATIVE_INFINITY;
+            for (int position = nodeStart[node]; position < nodeEnd[node]; position++) {
+                final int index = order[position];
+                if (index >= 0) {
+                    maxKey = Math.max(maxKey, keys[index]);
+                }
+            }
+            nodeMaxKey[node] = maxKey;
+        }
+    }
+
+    /**
+     * Approximates the energy a point introduces into the archive.
+     *
+     * @param point the normalized objectives
+     * @param pointCharge the value of the scalarization function for the point
+     * @param excluded the index of a member to be ignored (the point itself),
+     * -1 if none
+     * @param angle the opening angle, 0 computes the exact energy
+     * @param stack scratch space from <code>newStack</code>
+     */
+    public double potential(final double[] point,
+                            final double pointCharge,
+                            final int excluded,
+                            final double angle,
+                            final int[] stack)
+    {
+        double potential = 0;
+        for (int i = 0; i < addedCount; i++) {
+            final int index = added[i];
+            if (index != excluded) {
+                potential += pointCharge * charges[index]
+                    / Math.sqrt(squaredDistanceTo(point, index));
+            }
+        }
+        if (nodeCount == 0) {
+            return potential;
+        }
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            final int node = stack[--top];
+            final int offset = node * objectiveCount;
+
+            boolean inside = true;
+            double squaredDistance = 0;
+            for (int k = 0; k < objectiveCount; k++) {
+                final double value = point[k];
+                inside &= value >= nodeMin[offset + k] && value <= nodeMax[offset + k];
+                final double difference = value - nodeCentroid[offset + k];
+                squaredDistance += difference * difference;
+            }
+            // Fails for the NaN centroid of nodes without charge.
+            if (!inside && nodeDiameter[node] < angle * Math.sqrt(squaredDistance)) {
+                potential += pointCharge * nodeCharge[node] / Math.sqrt(squaredDistance);
+                continue;
+            }
+
+            final int child = nodeChild[node];
+            if (child >= 0) {
+                stack[top++] = child;
+                stack[top++] = child + 1;
+                continue;
+            }
+            for (int position = nodeStart[node]; position < nodeEnd[node]; position++) {
+                final int index = order[position];
+                if (index < 0 || index == excluded) {
+                    continue;
+                }
+                potential += pointCharge * charges[index]
+                    / Math.sqrt(squaredDistanceTo(point, index));
+            }
+        }
+        return potential;
+    }
+
+    /**
+     * Finds the members a point could replace. The energy of a member a is
+     * bounded by the maximum key of its node, its summand with the point by
+     * the maximum charge of the node divided by the distance between the point
+     * and the bounding box of the node. Nodes for which the sum of the two
+     * bounds does not exceed the total energy of the point are skipped. For
+     * all members of the remaining leafs and all members added since the tree
+     * was built the exact summand is computed.
+     *
+     * @param point the normalized objectives
+     * @param pointCharge the value of the scalarization function for the point
+     * @param total the energy the point introduces
+     * @param indices receives the indices of the members found
+     * @param summands receives the summand between the point and each member
+     * found at the index of the member
+     * @return the number of members found
+     */
+    public int replaceable(final double[] point,
+                           final double pointCharge,
+                           final double total,
+                           final int[] indices,
+                           final double[] summands)
+    {
+        int count = 0;
+        for (int i = 0; i < addedCount; i++) {
+            final int index = added[i];
+            summands[index] = pointCharge * charges[index]
+                / Math.sqrt(squaredDistanceTo(point, index));
+            indices[count++] = index;
+        }
+        if (nodeCount == 0) {
+            return count;
+        }
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            final int node = stack[--top];
+            final int offset = node * objectiveCount;
+
+            double squaredDistance = 0;
+            for (int k = 0; k < objectiveCount; k++) {
+                final double value = point[k];
+                final double difference = Math.max(Math.max(nodeMin[offset + k] - value, 0),
+                                                   value - nodeMax[offset + k]);
+                squaredDistance += difference * difference;
+            }
+            final double summandBound =
+                Math.abs(pointCharge) * nodeMaxAbsCharge[node] / Math.sqrt(squaredDistance);
+            // Visits the node if the bound is NaN.
+            if (nodeMaxKey[node] + summandBound <= total) {
+                continue;
+            }
+
+            final int child = nodeChild[node];
+            if (child >= 0) {
+                stack[top++] = child;
+                stack[top++] = child + 1;
+                continue;
+            }
+            for (int position = nodeStart[node]; position < nodeEnd[node]; position++) {
+                final int index = order[position];
+                if (index < 0) {
+                    continue;
+                }
+                summands[index] = pointCharge * charges[index]
+                    / Math.sqrt(squaredDistanceTo(point, index));
+                indices[count++] = index;
+            }
+        }
+        return count;
+    }
+
+    private double squaredDistanceTo(final double[] point, final int index)
+    {
+        double squaredDistance = 0;
+        for (int k = 0; k < objectiveCount; k++) {
+            final double difference = point[k] - normalized[k * capacity + index];
+            squaredDistance += difference * difference;
+        }
+        return squaredDistance;
+    }
+
+}
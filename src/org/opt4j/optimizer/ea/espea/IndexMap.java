@@ -22,12 +22,6 @@
 
 package org.opt4j.optimizer.ea.espea;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-
 import org.opt4j.core.Individual;
 
 /**
@@ -35,32 +29,86 @@ import org.opt4j.core.Individual;
  * <code>capacity</code> and vice versa. Allows efficient iteration over the
  * individuals with the incices in a specific range. Stores a maximum of
  * <code>capacity</code> individuals.
+ * <p>
+ * Does not allocate any objects after construction. Individuals are compared
+ * by identity and looked up in an open-addressing hash table with linear
+ * probing, free indices are kept on a stack (the most recently freed index is
+ * reused first). Iterate using
+ * <code>for (int index = map.nextSlot(-1); index &gt;= 0; index = map.nextSlot(index))</code>.
  *
  * @author luisgerhorst
  */
-public class IndexMap implements Iterable<IndexMap.Entry> {
+public class IndexMap {
 
-    private final Map<Individual, Integer> indices;
     private final Individual[] objects;
-    private final List<Integer> freeIndices;
+    private final int[] freeIndices;
+    private int freeCount;
+
+    // Open-addressing table, keys[i] == null marks an empty bucket.
+    private final Individual[] keys;
+    private final int[] values;
+    private final int mask;
+    private int size;
+
+    /**
+     * Whether the used slots are always 0 to size - 1, see
+     * <code>compact</code>.
+     */
+    private final boolean compact;
+    /**
+     * The slot freed by the latest removal if <code>compact</code> has not
+     * been called yet, -1 otherwise.
+     */
+    private int hole;
 
     public IndexMap(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity the maximum number of individuals
+     * @param compact whether the caller keeps the used slots dense by calling
+     * <code>compact</code> after each removal
+     */
+    public IndexMap(int capacity, final boolean compact) {
+        this.compact = compact;
+        this.hole = -1;
         capacity++;
-        indices = new HashMap<Individual, Integer>();
         objects = new Individual[capacity];
-        freeIndices = new LinkedList<Integer>();
+        freeIndices = new int[capacity];
+        // The smallest index is on top of the stack.
         for (int index = 0; index < capacity; index++) {
-            freeIndices.add(index);
+            freeIndices[index] = capacity - 1 - index;
         }
+        freeCount = capacity;
+
+        // At most half full.
+        final int buckets = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+        keys = new Individual[buckets];
+        values = new int[buckets];
+        mask = buckets - 1;
+        size = 0;
     }
 
     public int size() {
-        return indices.size();
+        return size;
     }
 
     public int get(final Individual object) {
         assert object != null : "object is null";
-        return indices.get(object);
+        int bucket = bucket(object);
+        while (keys[bucket] != object) {
+            assert keys[bucket] != null : "object not part of the map";
+            bucket = (bucket + 1) & mask;
+        }
+        return values[bucket];
+    }
+
+    /**
+     * @return true if the given slot is assigned to an individual
+     */
+    public boolean contains(final int index) {
+        return objects[index] != null;
     }
 
     public Individual get(final int index) {
@@ -75,9 +123,18 @@ public class IndexMap implements Iterable<IndexMap.Entry> {
      * @return the index assigned to the given object
      */
     public int put(final Individual object) {
-        assert freeIndices.size() + indices.size() == objects.length: "indices/freeIndices out of sync";
-        final int index = freeIndices.remove(0);
-        indices.put(object, index);
+        assert freeCount + size == objects.length: "indices/freeIndices out of sync";
+        assert freeCount > 0 : "No free index left";
+        assert hole < 0 : "compact has not been called after the latest removal";
+        final int index = freeIndices[--freeCount];
+        int bucket = bucket(object);
+        while (keys[bucket] != null) {
+            assert keys[bucket] != object : "object already part of the map";
+            bucket = (bucket + 1) & mask;
+        }
+        keys[bucket] = object;
+        values[bucket] = index;
+        size++;
         objects[index] = object;
         return index;
     }
@@ -89,94 +146,124 @@ public class IndexMap implements Iterable<IndexMap.Entry> {
      * @return the index that was mapped to the object
      */
     public int remove(final Individual object) {
-        assert freeIndices.size() + indices.size() == objects.length: "indices/freeIndices out of sync";
-        final int index = indices.remove(object);
+        assert freeCount + size == objects.length: "indices/freeIndices out of sync";
+        int bucket = bucket(object);
+        while (keys[bucket] != object) {
+            assert keys[bucket] != null : "object not part of the map";
+            bucket = (bucket + 1) & mask;
+        }
+        final int index = values[bucket];
+
+        // Shift following entries of the probe sequence back into the gap.
+        int gap = bucket;
+        int next = (gap + 1) & mask;
+        while (keys[next] != null) {
+            final int home = bucket(keys[next]);
+            // Move the entry if its home bucket is not between gap and next.
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = null;
+        size--;
+
         objects[index] = null;
-        freeIndices.add(0, index);
+        freeIndices[freeCount++] = index;
+        if (compact) {
+            hole = index;
+        }
         return index;
     }
 
     /**
-     * Equals <code>iterator(0, capacity)</code>.
+     * Moves the individual with the highest index into the slot freed by the
+     * latest call to <code>remove</code>. If this is done after every removal,
+     * the individuals always occupy the slots 0 to <code>size() - 1</code>.
+     *
+     * @param freed the index returned by <code>remove</code>
+     * @return the previous index of the moved individual, -1 if the freed
+     * slot was the highest one
      */
-    public Iterator<Entry> iterator() {
-        return iterator(0, objects.length);
+    public int compact(final int freed) {
+        assert compact : "map not created for compaction";
+        assert hole == freed : "freed is not the latest slot removed";
+        hole = -1;
+        final int last = size;
+        if (last <= freed) {
+            return -1;
+        }
+        assert objects[last] != null : "slots not dense";
+        final Individual object = objects[last];
+        int bucket = bucket(object);
+        while (keys[bucket] != object) {
+            bucket = (bucket + 1) & mask;
+        }
+        values[bucket] = freed;
+        objects[freed] = object;
+        objects[last] = null;
+        // The smallest free index stays on top of the stack.
+        freeIndices[freeCount - 1] = last;
+        return last;
     }
 
-    /**
-     * Equals <code>iterator(0, end)</code>.
-     */
-    public Iterator<Entry> iteratorTo(int end) {
-        return iterator(0, end);
+    private int bucket(final Individual object) {
+        final int hash = System.identityHashCode(object) * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
     }
 
     /**
-     * Equals <code>iterator(start, capacity)</code>.
+     * @return the number of slots, all indices are smaller
      */
-    public Iterator<Entry> iteratorFrom(int start) {
-        return iterator(start, objects.length);
+    public int slots() {
+        return objects.length;
     }
 
     /**
-     * @param start The first index that may be considered for iteration
-     * @param end Exclusive, all iterated indices shall be smaller
-     * @return an iterator for all mapped individuals (together with their
-     * corresponding index) in order (smaller indices before greater ones). Note
-     * that not all indexes in the given range may be encountered since some of
-     * them may not be assigned to an individual.
+     * @return an upper bound (exclusive) for the indices of all individuals,
+     * the number of individuals if the map is kept compact and there is no
+     * pending removal
      */
-    public Iterator<Entry> iterator(int start, int end) {
-        return new IndexMap.IndexMapIterator(objects, start, end);
-    }
-
-    private static class IndexMapIterator implements Iterator<IndexMap.Entry> {
-
-        private final Individual[] objects;
-        private final int end; // exclusive
-        private int index;
-
-        public IndexMapIterator(final Individual[] objects,
-                                final int start,
-                                final int end)
-        {
-            assert 0 <= start && end <= objects.length : "Start / end not within array boundaries";
-            this.objects = objects;
-            this.end = end;
-            this.index = start;
-            skipUnusedSlots();
-        }
-
-        public boolean hasNext() {
-            return index < end;
-        }
-
-        public Entry next() {
-            assert index < end : "index >= end";
-            assert objects[index] != null : "objects[index] == null";
-            final Entry entry =
-                new Entry(index, objects[index]);
-            index++;
-            skipUnusedSlots();
-            return entry;
+    public int end() {
+        if (!compact) {
+            return objects.length;
         }
+        return hole < 0 ? size : size + 1;
+    }
 
-        private void skipUnusedSlots() {
-            while (index < end && objects[index] == null) {
-                index++;
-            }
-        }
+    /**
+     * @param index the slot after which to continue, -1 to start with the
+     * first slot
+     * @return the smallest index greater than the given one that is assigned
+     * to an individual, -1 if there is none
+     */
+    public int nextSlot(final int index) {
+        return nextSlot(index, objects.length);
     }
 
     /**
-     * An individual - index mapping.
+     * @param index the slot after which to continue
+     * @param end exclusive, all returned indices are smaller
+     * @return the smallest index greater than the given one and smaller than
+     * end that is assigned to an individual, -1 if there is none
      */
-    public static class Entry {
-        public final int index;
-        public final Individual individual;
-        public Entry(int index, Individual individual) {
-            this.index = index;
-            this.individual = individual;
+    public int nextSlot(final int index, final int end) {
+        assert end <= objects.length : "end not within array boundaries";
+        if (compact) {
+            int slot = index + 1;
+            if (slot == hole) {
+                slot++;
+            }
+            return slot < end && slot < end() ? slot : -1;
+        }
+        for (int slot = index + 1; slot < end; slot++) {
+            if (objects[slot] != null) {
+                return slot;
+            }
         }
+        return -1;
     }
 
 }
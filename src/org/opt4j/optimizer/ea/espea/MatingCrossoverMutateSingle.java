@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package org.opt4j.optimizer.ea.espea;
+
+import java.util.List;
+
+import org.opt4j.core.Genotype;
+import org.opt4j.core.Individual;
+import org.opt4j.core.IndividualFactory;
+import org.opt4j.core.common.random.Rand;
+import org.opt4j.operators.copy.Copy;
+import org.opt4j.operators.crossover.Crossover;
+import org.opt4j.operators.crossover.Pair;
+import org.opt4j.operators.mutate.Mutate;
+import org.opt4j.operators.mutate.MutationRate;
+import org.opt4j.optimizers.ea.Coupler;
+import org.opt4j.optimizers.ea.CrossoverRate;
+import org.opt4j.optimizers.ea.MatingCrossoverMutate;
+
+import com.google.inject.Inject;
+
+/**
+ * {@link MatingCrossoverMutate} that can also create a single offspring
+ * without copying the parents. If the bound <code>Coupler</code> is a
+ * {@link CouplerDistinctTournament}, the couple is chosen in time independent
+ * of the number of parents.
+ *
+ * @author luisgerhorst
+ */
+public class MatingCrossoverMutateSingle extends MatingCrossoverMutate implements SingleOffspringMating {
+
+    @Inject
+    public MatingCrossoverMutateSingle(Crossover<Genotype> crossover,
+                                       Mutate<Genotype> mutate,
+                                       Copy<Genotype> copy,
+                                       Coupler coupler,
+                                       CrossoverRate crossoverRate,
+                                       MutationRate mutationRate,
+                                       Rand random,
+                                       IndividualFactory individualFactory) {
+        super(crossover, mutate, copy, coupler, crossoverRate, mutationRate,
+              random, individualFactory);
+    }
+
+    /**
+     * Mates a single couple and returns the first of the two offspring, like
+     * <code>getOffspring(1, parents)</code>.
+     */
+    @Override
+    public Individual createOffspring(final List<Individual> parents) {
+        final Pair<Individual> couple = coupler instanceof CouplerDistinctTournament
+            ? ((CouplerDistinctTournament) coupler).getCouple(parents)
+            : coupler.getCouples(1, parents).iterator().next();
+        final boolean doCrossover = random.nextDouble() <= crossoverRate.get();
+        return mate(couple.getFirst(), couple.getSecond(), doCrossover).getFirst();
+    }
+
+}
@@ -26,11 +26,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.opt4j.core.Genotype;
 import org.opt4j.core.Individual;
 import org.opt4j.core.IndividualFactory;
 import org.opt4j.core.common.random.Rand;
+import org.opt4j.core.genotype.DoubleGenotype;
+import org.opt4j.core.optimizer.Optimizer;
+import org.opt4j.core.optimizer.OptimizerStateListener;
 import org.opt4j.core.start.Constant;
 import org.opt4j.operators.algebra.Add;
 import org.opt4j.operators.algebra.Algebra;
@@ -41,9 +47,11 @@ import org.opt4j.operators.algebra.Term;
 import org.opt4j.operators.algebra.Var;
 import org.opt4j.operators.crossover.Crossover;
 import org.opt4j.operators.crossover.Pair;
+import org.opt4j.operators.normalize.NormalizeDouble;
 import org.opt4j.optimizers.ea.Mating;
 
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 
 /**
  * Creates offspring from a given set of parents by using differential
@@ -51,7 +59,8 @@ import com.google.inject.Inject;
  *
  * @author glass, lukasiewycz, luisgerhorst
  */
-public class MatingDifferentialEvolution implements Mating {
+@Singleton
+public class MatingDifferentialEvolution implements Mating, SingleOffspringMating, OptimizerStateListener {
 
     private final IndividualFactory individualFactory;
     private final Crossover<Genotype> crossover;
@@ -59,18 +68,64 @@ public class MatingDifferentialEvolution implements Mating {
     private final Rand random;
     private final Term term;
 
+    private final NormalizeDouble normalizeDouble;
+    private final Recombination recombination;
+    private final double scalingFactor;
+    private final double binomialCrossoverRate;
+
+    /**
+     * Creates the offspring genotypes in parallel, null if they are created
+     * by the calling thread only. Only used by the BINOMIAL recombination of
+     * double genotypes, the other recombinations use operators sharing one
+     * random number generator. Shut down when the optimization stops.
+     */
+    private final ForkJoinPool matingPool;
+    /**
+     * The number of tasks created per thread, gives the pool some room for
+     * balancing.
+     */
+    private static final int TASKS_PER_THREAD = 4;
+
+    /**
+     * Determines how the trial vector and the parent are recombined. OPERATOR
+     * uses the bound {@link Crossover} and keeps one of the two children.
+     * BINOMIAL takes each element from the trial vector with the binomial
+     * crossover rate (at least one), otherwise from the parent; for
+     * {@link DoubleGenotype}s the mutation and the crossover are then
+     * computed in a single pass without building intermediate genotypes.
+     */
+    public enum Recombination {
+        OPERATOR,
+        BINOMIAL;
+    }
+
     @Inject
     public MatingDifferentialEvolution(IndividualFactory individualFactory,
                                        Crossover<Genotype> crossover,
                                        Algebra<Genotype> algebra,
+                                       NormalizeDouble normalizeDouble,
                                        Rand random,
                                        @Constant(value = "scalingFactor",
                                                  namespace = MatingDifferentialEvolution.class)
-                                       double scalingFactor) {
+                                       double scalingFactor,
+                                       @Constant(value = "recombination",
+                                                 namespace = MatingDifferentialEvolution.class)
+                                       Recombination recombination,
+                                       @Constant(value = "binomialCrossoverRate",
+                                                 namespace = MatingDifferentialEvolution.class)
+                                       double binomialCrossoverRate,
+                                       @Constant(value = "threads",
+                                                 namespace = MatingDifferentialEvolution.class)
+                                       int threads) {
         this.individualFactory = individualFactory;
         this.crossover = crossover;
         this.algebra = algebra;
+        this.normalizeDouble = normalizeDouble;
         this.random = random;
+        this.recombination = recombination;
+        this.scalingFactor = scalingFactor;
+        this.binomialCrossoverRate = binomialCrossoverRate;
+        this.matingPool = threads > 1 ? new ForkJoinPool(threads) : null;
 
         final Index i0 = new Index(0);
         final Index i1 = new Index(1);
@@ -79,6 +134,17 @@ public class MatingDifferentialEvolution implements Mating {
         this.term = new Add(i0, new Mult(c, new Sub(i1, i2)));
     }
 
+    @Override
+    public void optimizationStarted(final Optimizer optimizer) {
+    }
+
+    @Override
+    public void optimizationStopped(final Optimizer optimizer) {
+        if (matingPool != null) {
+            matingPool.shutdownNow();
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -92,43 +158,182 @@ public class MatingDifferentialEvolution implements Mating {
     }
 
     /**
-     * Creates offspring from a given set of parents. size must be the number of
-     * parents.
+     * Creates offspring from a given set of parents. size must be at most the
+     * number of parents, if it is smaller the parents used as targets are
+     * chosen at random. The random decisions for each offspring are drawn from its own
+     * stream, split off a stream seeded by the bound {@link Rand}, so the
+     * offspring do not depend on the number of threads.
      */
     @Override
     public Collection<Individual> getOffspring(final int size,
                                                final Collection<Individual> parents) {
-        assert size == parents.size() : "Size must be the number of parents given";
+        assert size <= parents.size() : "Size must not exceed the number of parents given";
         assert parents.size() >= 4 : "Differential evolution requires at least 4 parents";
 
         final List<Individual> list = new ArrayList<Individual>(parents);
+        final SplittableRandom generationRandom = new SplittableRandom(random.nextLong());
+        final int[] targets = new int[list.size()];
+        for (int index = 0; index < list.size(); index++) {
+            targets[index] = index;
+        }
+        if (size < list.size()) {
+            // Partial Fisher-Yates shuffle.
+            for (int index = 0; index < size; index++) {
+                final int swapped = index + generationRandom.nextInt(list.size() - index);
+                final int target = targets[swapped];
+                targets[swapped] = targets[index];
+                targets[index] = target;
+            }
+        }
+        final SplittableRandom[] streams = new SplittableRandom[size];
+        for (int index = 0; index < size; index++) {
+            streams[index] = generationRandom.split();
+        }
+
+        final Genotype[] genotypes = new Genotype[size];
+        if (matingPool != null && !matingPool.isShutdown() && binomialDoubleOnly(list)) {
+            final int taskCount = Math.min(size, matingPool.getParallelism() * TASKS_PER_THREAD);
+            final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(taskCount);
+            for (int task = 0; task < taskCount; task++) {
+                final int start = size * task / taskCount;
+                final int end = size * (task + 1) / taskCount;
+                tasks.add(new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+                        @Override
+                        protected void compute() {
+                            for (int index = start; index < end; index++) {
+                                genotypes[index] = createGenotype(targets[index], list, streams[index]);
+                            }
+                        }
+                    });
+            }
+            matingPool.invoke(new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
+        } else {
+            for (int index = 0; index < size; index++) {
+                genotypes[index] = createGenotype(targets[index], list, streams[index]);
+            }
+        }
+
+        // The factory notifies listeners, the individuals are therefore
+        // created by the calling thread.
         final List<Individual> offsprings = new ArrayList<Individual>(size);
-        for (final Individual parent : parents) {
-            final Individual offspring = createOffspring(parent, list, term);
-            offsprings.add(offspring);
+        for (final Genotype genotype : genotypes) {
+            offsprings.add(individualFactory.create(genotype));
         }
         return offsprings;
     }
 
-    private Individual createOffspring(Individual parent,
-                                       List<Individual> individuals,
-                                       Term term) {
-        final Triple triple = getTriple(parent, individuals);
+    /**
+     * Creates a single offspring with a random parent as target. Unlike
+     * <code>getOffspring(1, parents)</code> the parents are not copied, the
+     * offspring is created in time independent of the number of parents.
+     */
+    @Override
+    public Individual createOffspring(final List<Individual> parents) {
+        assert parents.size() >= 4 : "Differential evolution requires at least 4 parents";
+
+        final SplittableRandom stream = new SplittableRandom(random.nextLong());
+        final int target = stream.nextInt(parents.size());
+        return individualFactory.create(createGenotype(target, parents, stream));
+    }
+
+    /**
+     * @return whether all offspring are created by
+     * <code>binomialOffspring</code>, which only uses the given stream
+     */
+    private boolean binomialDoubleOnly(final List<Individual> individuals) {
+        if (recombination != Recombination.BINOMIAL) {
+            return false;
+        }
+        for (final Individual individual : individuals) {
+            if (!(individual.getGenotype() instanceof DoubleGenotype)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Genotype createGenotype(final int parentIndex,
+                                    final List<Individual> individuals,
+                                    final SplittableRandom stream) {
+        final Individual parent = individuals.get(parentIndex);
+        final Triple triple = getTriple(parentIndex, individuals, stream);
 
         final Genotype g0 = triple.getFirst().getGenotype();
         final Genotype g1 = triple.getSecond().getGenotype();
         final Genotype g2 = triple.getThird().getGenotype();
 
+        if (recombination == Recombination.BINOMIAL
+            && parent.getGenotype() instanceof DoubleGenotype
+            && g0 instanceof DoubleGenotype
+            && g1 instanceof DoubleGenotype
+            && g2 instanceof DoubleGenotype)
+        {
+            return binomialOffspring((DoubleGenotype) parent.getGenotype(),
+                                     (DoubleGenotype) g0,
+                                     (DoubleGenotype) g1,
+                                     (DoubleGenotype) g2,
+                                     stream);
+        }
+
         final Genotype result = algebra.algebra(term, g0, g1, g2);
+        if (recombination == Recombination.BINOMIAL) {
+            return binomialCrossover(result, parent.getGenotype(), stream);
+        }
         final Pair<Genotype> g = crossover.crossover(result, parent.getGenotype());
+        return stream.nextBoolean() ? g.getFirst() : g.getSecond();
+    }
 
-        final Individual i;
-        if (random.nextBoolean()) {
-            i = individualFactory.create(g.getFirst());
-        } else {
-            i = individualFactory.create(g.getSecond());
+    /**
+     * Computes the trial vector g0 + F * (g1 - g2) and the binomial crossover
+     * with the parent in one pass. The child starts as a copy of the parent
+     * sharing its boxed values, only the elements taken from the trial vector
+     * are computed, boxed and set.
+     */
+    private DoubleGenotype binomialOffspring(final DoubleGenotype parent,
+                                             final DoubleGenotype g0,
+                                             final DoubleGenotype g1,
+                                             final DoubleGenotype g2,
+                                             final SplittableRandom stream) {
+        final int size = parent.size();
+        final int forced = stream.nextInt(size);
+        final DoubleGenotype child = parent.newInstance();
+        child.addAll(parent);
+        for (int i = 0; i < size; i++) {
+            if (i == forced || stream.nextDouble() < binomialCrossoverRate) {
+                child.set(i, g0.get(i) + scalingFactor * (g1.get(i) - g2.get(i)));
+            }
+        }
+        normalizeDouble.normalize(child);
+        return child;
+    }
+
+    /**
+     * Binomial crossover for arbitrary list genotypes.
+     */
+    @SuppressWarnings("unchecked")
+    private Genotype binomialCrossover(final Genotype trial,
+                                       final Genotype parent,
+                                       final SplittableRandom stream) {
+        if (!(trial instanceof List) || !(parent instanceof List)) {
+            throw new IllegalArgumentException("Binomial crossover requires list genotypes, got "
+                                               + parent.getClass().getName());
+        }
+        final List<Object> trialList = (List<Object>) trial;
+        final List<Object> parentList = (List<Object>) parent;
+        final int forced = stream.nextInt(trialList.size());
+        for (int i = 0; i < trialList.size(); i++) {
+            if (i != forced && !(stream.nextDouble() < binomialCrossoverRate)) {
+                trialList.set(i, parentList.get(i));
+            }
         }
-        return i;
+        return trial;
     }
 
     /**
@@ -168,34 +373,39 @@ public class MatingDifferentialEvolution implements Mating {
 
     /**
      * Returns three different {@link Individual}s from the {@code individuals}
-     * list. Each {@link Individual} is not equal to the parent.
+     * list. Each {@link Individual} is not the parent. The indices are drawn
+     * by rejection sampling, which takes constant expected time for at least
+     * four individuals.
      *
-     * @param parent
-     *            the parent Individual
+     * @param parentIndex
+     *            the index of the parent Individual
      * @param individuals
      *            the population
+     * @param stream
+     *            the random numbers used
      * @return the three individuals as a Triple
      */
-    private Triple getTriple(final Individual parent,
-                             final List<Individual> individuals) {
-        individuals.remove(parent);
-        assert individuals.size() >= 3: "No individuals left";
-        final Individual ind0 = individuals
-                .remove(random.nextInt(individuals.size()));
-        final Individual ind1 = individuals
-                .remove(random.nextInt(individuals.size()));
-        final Individual ind2 = individuals
-                .remove(random.nextInt(individuals.size()));
-
-        final Triple triple = new Triple(ind0, ind1, ind2);
-
-        individuals.add(parent);
-        individuals.add(ind0);
-        individuals.add(ind1);
-        individuals.add(ind2);
-
-        return triple;
+    private Triple getTriple(final int parentIndex,
+                             final List<Individual> individuals,
+                             final SplittableRandom stream) {
+        final int size = individuals.size();
+        assert size >= 4: "No individuals left";
+        int i0;
+        do {
+            i0 = stream.nextInt(size);
+        } while (i0 == parentIndex);
+        int i1;
+        do {
+            i1 = stream.nextInt(size);
+        } while (i1 == parentIndex || i1 == i0);
+        int i2;
+        do {
+            i2 = stream.nextInt(size);
+        } while (i2 == parentIndex || i2 == i0 || i2 == i1);
 
+        return new Triple(individuals.get(i0),
+                          individuals.get(i1),
+                          individuals.get(i2));
     }
 
 }
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+
+package org.opt4j.optimizer.ea.espea;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opt4j.core.Objective;
+
+/**
+ * Decides when the {@link Normalizer} updates the bounds it uses for
+ * normalization after the bounds observed for the evaluated individuals
+ * changed. Every update invalidates the {@link EnergyCache}, delaying or
+ * skipping updates therefore saves rebuilds at the cost of normalizing with
+ * outdated bounds. Values outside the bounds used are normalized to values
+ * outside the range between 0.0 and 1.0, the {@link EnergyCache} keeps their
+ * charges positive.
+ * <p>
+ * <code>shouldApply</code> may be called by multiple threads concurrently.
+ *
+ * @author luisgerhorst
+ */
+public abstract class NormalizationPolicy {
+
+    private final AtomicInteger avoidedInvalidations = new AtomicInteger();
+
+    /**
+     * Called when the observed bounds of an objective differ from the ones
+     * used for normalization.
+     *
+     * @param objective the objective
+     * @param appliedMin the lower bound used, null if there is none yet
+     * @param appliedMax the upper bound used, null if there is none yet
+     * @param observedMin the smallest value observed
+     * @param observedMax the largest value observed
+     * @return true if the bounds of all objectives shall be updated now
+     */
+    protected abstract boolean shouldApply(Objective objective,
+                                           Double appliedMin, Double appliedMax,
+                                           double observedMin, double observedMax);
+
+    /**
+     * Called after each generation has been evaluated if there are observed
+     * bounds that have not been applied.
+     *
+     * @return true if the bounds of all objectives shall be updated now
+     */
+    protected boolean shouldApplyPending() {
+        return false;
+    }
+
+    /**
+     * @return the lower bound to be used for the given objective
+     */
+    protected double lowerBound(Objective objective, double observedMin) {
+        return observedMin;
+    }
+
+    /**
+     * @return the upper bound to be used for the given objective
+     */
+    protected double upperBound(Objective objective, double observedMax) {
+        return observedMax;
+    }
+
+    /**
+     * Called by the {@link Normalizer} after each generation with the
+     * difference between the number of rebuilds the EXACT policy would have
+     * caused (1 if the observed bounds changed) and the number caused by this
+     * policy (1 if the bounds used changed). Negative when changes observed in
+     * earlier generations are applied.
+     */
+    void countAvoidedInvalidations(int delta) {
+        avoidedInvalidations.addAndGet(delta);
+    }
+
+    /**
+     * @return the number of cache rebuilds avoided compared to the EXACT
+     * policy, counted per generation
+     */
+    public int getAvoidedInvalidations() {
+        return avoidedInvalidations.get();
+    }
+
+}
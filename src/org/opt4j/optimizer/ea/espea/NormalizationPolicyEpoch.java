@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+
+package org.opt4j.optimizer.ea.espea;
+
+import org.opt4j.core.Objective;
+import org.opt4j.core.start.Constant;
+
+import com.google.inject.Inject;
+
+/**
+ * Collects the changes of the bounds and applies them after every given number
+ * of generations. The first bounds are applied immediately.
+ *
+ * @author luisgerhorst
+ */
+public class NormalizationPolicyEpoch extends NormalizationPolicy {
+
+    private final int generations;
+    private int generationsSinceApplied = 0;
+
+    /**
+     * @param generations the number of generations between two updates
+     */
+    @Inject
+    public NormalizationPolicyEpoch(@Constant(value = "generations", namespace = NormalizationPolicyEpoch.class) int generations) {
+        this.generations = generations;
+    }
+
+    @Override
+    protected boolean shouldApply(Objective objective,
+                                  Double appliedMin, Double appliedMax,
+                                  double observedMin, double observedMax) {
+        return appliedMin == null || appliedMax == null;
+    }
+
+    @Override
+    protected boolean shouldApplyPending() {
+        if (++generationsSinceApplied < generations) {
+            return false;
+        }
+        generationsSinceApplied = 0;
+        return true;
+    }
+
+}
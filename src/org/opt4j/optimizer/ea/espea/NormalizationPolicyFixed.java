@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+
+package org.opt4j.optimizer.ea.espea;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opt4j.core.Objective;
+import org.opt4j.core.Objective.Sign;
+import org.opt4j.core.start.Constant;
+
+import com.google.inject.Inject;
+
+/**
+ * Uses bounds declared up front for problems with known ranges. The bounds
+ * are given as a comma separated list of entries <code>name=lower:upper</code>
+ * where name is the name of the objective and lower and upper are values of
+ * the objective as returned by the evaluator (i.e. not negated for objectives
+ * to be maximized). Objectives without declared bounds are treated like by
+ * {@link NormalizationPolicyExact}.
+ *
+ * @author luisgerhorst
+ */
+public class NormalizationPolicyFixed extends NormalizationPolicy {
+
+    private final Map<String, double[]> bounds = new HashMap<String, double[]>();
+
+    @Inject
+    public NormalizationPolicyFixed(@Constant(value = "bounds", namespace = NormalizationPolicyFixed.class) String bounds) {
+        for (String entry : bounds.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            final int separator = entry.lastIndexOf('=');
+            final String[] range = entry.substring(separator + 1).split(":");
+            if (separator < 0 || range.length != 2) {
+                throw new IllegalArgumentException("Invalid normalization bounds \"" + entry + "\", expected name=lower:upper");
+            }
+            final double lower = Double.parseDouble(range[0].trim());
+            final double upper = Double.parseDouble(range[1].trim());
+            if (!(lower < upper)) {
+                throw new IllegalArgumentException("Lower bound not smaller than upper bound in \"" + entry + "\"");
+            }
+            this.bounds.put(entry.substring(0, separator).trim(), new double[] { lower, upper });
+        }
+    }
+
+    @Override
+    protected boolean shouldApply(Objective objective,
+                                  Double appliedMin, Double appliedMax,
+                                  double observedMin, double observedMax) {
+        return appliedMin == null || appliedMax == null
+            || !bounds.containsKey(objective.getName());
+    }
+
+    @Override
+    protected double lowerBound(Objective objective, double observedMin) {
+        final double[] declared = bounds.get(objective.getName());
+        if (declared == null) {
+            return observedMin;
+        }
+        return objective.getSign() == Sign.MAX ? -declared[1] : declared[0];
+    }
+
+    @Override
+    protected double upperBound(Objective objective, double observedMax) {
+        final double[] declared = bounds.get(objective.getName());
+        if (declared == null) {
+            return observedMax;
+        }
+        return objective.getSign() == Sign.MAX ? -declared[0] : declared[1];
+    }
+
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+
+package org.opt4j.optimizer.ea.espea;
+
+import org.opt4j.core.Objective;
+import org.opt4j.core.start.Constant;
+
+import com.google.inject.Inject;
+
+/**
+ * Updates the bounds once an observed bound exceeds the one used by more than
+ * the tolerance times the range of the bounds used.
+ *
+ * @author luisgerhorst
+ */
+public class NormalizationPolicyHysteresis extends NormalizationPolicy {
+
+    private final double tolerance;
+
+    /**
+     * @param tolerance the fraction of the range by which a bound may be
+     * exceeded without updating the bounds
+     */
+    @Inject
+    public NormalizationPolicyHysteresis(@Constant(value = "tolerance", namespace = NormalizationPolicyHysteresis.class) double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    protected boolean shouldApply(Objective objective,
+                                  Double appliedMin, Double appliedMax,
+                                  double observedMin, double observedMax) {
+        if (appliedMin == null || appliedMax == null) {
+            return true;
+        }
+        final double range = appliedMax - appliedMin;
+        return !(range > 0)
+            || appliedMin - observedMin > tolerance * range
+            || observedMax - appliedMax > tolerance * range;
+    }
+
+}
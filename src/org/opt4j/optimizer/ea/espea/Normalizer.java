@@ -23,10 +23,14 @@
 package org.opt4j.optimizer.ea.espea;
 
 import static org.opt4j.core.Objective.Sign.MAX;
+import static org.opt4j.core.Objective.Sign.MIN;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.opt4j.core.Individual;
 import org.opt4j.core.IndividualFactory;
@@ -40,24 +44,79 @@ import com.google.inject.Singleton;
 
 /**
  * The {@link Normalizer} can be used to normalize {@link Objectives}.
+ * <p>
+ * Individuals may be evaluated by multiple threads concurrently. The bounds
+ * are therefore stored as bits of doubles in atomic arrays and only ever
+ * widened using compare-and-set loops. Whenever the bounds used for
+ * normalization change, the epoch is incremented, the {@link EnergyCache}
+ * compares it to the epoch it has been computed for.
  *
  * @author reimann, luisgerhorst
  */
 @Singleton
 public class Normalizer implements IndividualStateListener {
-    private final Map<Objective, Double> minValues = new HashMap<Objective, Double>();
-    private final Map<Objective, Double> maxValues = new HashMap<Objective, Double>();
 
-    public EnergyCache cache;
+    /**
+     * The bounds of the objectives of the first evaluated individual. Only
+     * the values in the arrays change afterwards.
+     */
+    private static final class Bounds {
+        final Map<Objective, Integer> indices = new HashMap<Objective, Integer>();
+        final Objective[] objectives;
+        // The bounds used for normalization.
+        final AtomicLongArray minValues;
+        final AtomicLongArray maxValues;
+        // The bounds of all values seen so far.
+        final AtomicLongArray observedMinValues;
+        final AtomicLongArray observedMaxValues;
+
+        Bounds(Objectives objectives) {
+            this.objectives = objectives.getKeys().toArray(new Objective[0]);
+            final int count = this.objectives.length;
+            minValues = new AtomicLongArray(count);
+            maxValues = new AtomicLongArray(count);
+            observedMinValues = new AtomicLongArray(count);
+            observedMaxValues = new AtomicLongArray(count);
+            for (int i = 0; i < count; i++) {
+                indices.put(this.objectives[i], i);
+                // Infinite until the first value has been seen.
+                minValues.set(i, Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+                maxValues.set(i, Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+                observedMinValues.set(i, Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+                observedMaxValues.set(i, Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+            }
+        }
+
+        int index(Objective objective) {
+            final Integer index = indices.get(objective);
+            if (index == null) {
+                throw new IllegalArgumentException("Individuals differ in their objectives, unknown objective " + objective);
+            }
+            return index;
+        }
+    }
+
+    private volatile Bounds bounds;
+    private final AtomicLong epoch = new AtomicLong();
+    private final AtomicBoolean pending = new AtomicBoolean();
+    // Whether the observed bounds changed since the last generation.
+    private final AtomicBoolean observedChanged = new AtomicBoolean();
+    // The epoch after the last generation, only used by generationEvaluated.
+    private long generationEpoch;
+
+    private final NormalizationPolicy policy;
 
     /**
      * Creates a new {@link Normalizer}.
      *
      * @param individualFactory
      *            the individual factory
+     * @param policy
+     *            decides when changed bounds are applied
      */
     @Inject
-    public Normalizer(IndividualFactory individualFactory) {
+    public Normalizer(IndividualFactory individualFactory, NormalizationPolicy policy) {
+        this.policy = policy;
         individualFactory.addIndividualStateListener(this);
     }
 
@@ -66,7 +125,9 @@ public class Normalizer implements IndividualStateListener {
      * is in the range between 0.0 and 1.0 and has to be minimized. Here, 0.0 is
      * the smallest value seen so far for this {@link Objective} for all
      * evaluated {@link Individual}s and 1.0 the biggest value, respectively. If
-     * an {@link Objective} is infeasible, it is set to 1.0.
+     * an {@link Objective} is infeasible, it is set to 1.0. The resulting
+     * objectives are minimized copies of the given ones with the same names,
+     * <code>array()</code> therefore never negates the normalized values.
      *
      * @param objectives
      *            the objectives to normalize
@@ -74,6 +135,7 @@ public class Normalizer implements IndividualStateListener {
      */
     public Objectives normalize(Objectives objectives) {
         Objectives normalized = new Objectives();
+        Bounds bounds = this.bounds;
 
         for (Entry<Objective, Value<?>> entry : objectives) {
             Objective objective = entry.getKey();
@@ -82,18 +144,70 @@ public class Normalizer implements IndividualStateListener {
             double newvalue = 1.0;
 
             if (oldvalue != Double.MAX_VALUE) {
-                Double min = minValues.get(objective);
-                Double max = maxValues.get(objective);
-                assert min != null;
-                assert max != null;
+                assert bounds != null;
+                int index = bounds.index(objective);
+                double min = get(bounds.minValues, index);
+                double max = get(bounds.maxValues, index);
+                assert !Double.isInfinite(min);
+                assert !Double.isInfinite(max);
                 newvalue = (oldvalue - min) / (max - min);
             }
-            normalized.add(objective, newvalue);
+            // A minimized copy, see ScalarizationFunction.
+            normalized.add(objective.getName(), MIN, newvalue);
         }
 
         return normalized;
     }
 
+    /**
+     * Writes the parameters used by <code>normalize</code> for the given
+     * {@link Objective}s into the supplied arrays. A feasible value v of
+     * objectives[i] is normalized as <code>(v - offsets[i]) * scales[i]</code>.
+     * Allows the {@link EnergyCache} to normalize objective values without
+     * allocating new {@link Objectives}. Read <code>getEpoch</code> before
+     * calling this, the values are only consistent if the epoch did not change
+     * meanwhile.
+     *
+     * @param objectives
+     *            the objectives whose parameters shall be returned
+     * @param offsets
+     *            receives the smallest value seen so far for each objective
+     * @param scales
+     *            receives the reciprocal of the range of values seen so far
+     *            for each objective
+     */
+    public void bounds(Objective[] objectives, double[] offsets, double[] scales) {
+        Bounds bounds = this.bounds;
+        assert bounds != null;
+        for (int i = 0; i < objectives.length; i++) {
+            int index = bounds.index(objectives[i]);
+            double min = get(bounds.minValues, index);
+            double max = get(bounds.maxValues, index);
+            assert !Double.isInfinite(min);
+            assert !Double.isInfinite(max);
+            offsets[i] = min;
+            scales[i] = 1.0 / (max - min);
+        }
+    }
+
+    /**
+     * Called by the {@link EnergyArchive} before it creates its
+     * {@link EnergyCache}. Allows subclasses to follow the archive.
+     *
+     * @param archive
+     *            the archive whose members will be normalized
+     */
+    public void attach(EnergyArchive archive) {
+    }
+
+    /**
+     * @return a counter incremented whenever the bounds used for normalization
+     *         change
+     */
+    public long getEpoch() {
+        return epoch.get();
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -104,22 +218,133 @@ public class Normalizer implements IndividualStateListener {
     @Override
     public void inidividualStateChanged(Individual individual) {
         if (individual.isEvaluated()) {
+            Bounds bounds = bounds(individual.getObjectives());
             boolean changed = false;
+            boolean apply = false;
             for (Entry<Objective, Value<?>> entry : individual.getObjectives()) {
                 Objective objective = entry.getKey();
+                int index = bounds.index(objective);
                 double value = toMinProblem(entry.getKey(), entry.getValue());
-                if (minValues.get(objective) == null || value < minValues.get(objective)) {
-                    minValues.put(objective, value);
+                // Both have to be called.
+                boolean objectiveChanged = lower(bounds.observedMinValues, index, value);
+                objectiveChanged |= raise(bounds.observedMaxValues, index, value);
+                if (objectiveChanged) {
                     changed = true;
+                    double min = get(bounds.minValues, index);
+                    double max = get(bounds.maxValues, index);
+                    apply |= policy.shouldApply(objective,
+                                                Double.isInfinite(min) ? null : min,
+                                                Double.isInfinite(max) ? null : max,
+                                                get(bounds.observedMinValues, index),
+                                                get(bounds.observedMaxValues, index));
                 }
-                if (maxValues.get(objective) == null || value > maxValues.get(objective)) {
-                    maxValues.put(objective, value);
-                    changed = true;
+            }
+            if (changed) {
+                observedChanged.set(true);
+            }
+            if (apply) {
+                applyObservedBounds(bounds);
+            } else if (changed) {
+                pending.set(true);
+            }
+        }
+    }
+
+    /**
+     * Called after all individuals of a generation have been evaluated,
+     * allows the policy to apply the bounds observed meanwhile.
+     * <p>
+     * The cache is rebuilt lazily, at most once per generation no matter how
+     * often it has been invalidated. The EXACT policy therefore causes one
+     * rebuild per generation in which the observed bounds changed, the
+     * rebuilds avoided by the policy are counted accordingly.
+     */
+    public void generationEvaluated() {
+        if (pending.get() && policy.shouldApplyPending()) {
+            applyObservedBounds(bounds);
+        }
+        final boolean exactInvalidated = observedChanged.getAndSet(false);
+        final long currentEpoch = epoch.get();
+        final boolean invalidated = currentEpoch != generationEpoch;
+        generationEpoch = currentEpoch;
+        policy.countAvoidedInvalidations((exactInvalidated ? 1 : 0) - (invalidated ? 1 : 0));
+    }
+
+    private void applyObservedBounds(Bounds bounds) {
+        // Changes observed from now on will be applied later.
+        pending.set(false);
+        for (int i = 0; i < bounds.objectives.length; i++) {
+            Objective objective = bounds.objectives[i];
+            lower(bounds.minValues, i,
+                  policy.lowerBound(objective, get(bounds.observedMinValues, i)));
+            raise(bounds.maxValues, i,
+                  policy.upperBound(objective, get(bounds.observedMaxValues, i)));
+        }
+        // Invalidate energies cache.
+        epoch.incrementAndGet();
+    }
+
+    /**
+     * @return the bounds, created for the given objectives if there are none
+     *         yet
+     */
+    private Bounds bounds(Objectives objectives) {
+        Bounds bounds = this.bounds;
+        if (bounds == null) {
+            synchronized (this) {
+                bounds = this.bounds;
+                if (bounds == null) {
+                    bounds = new Bounds(objectives);
+                    this.bounds = bounds;
                 }
             }
-            // Invalidate energies cache.
-            if (changed && cache != null) cache.invalidate();
         }
+        return bounds;
+    }
+
+    private static double get(AtomicLongArray array, int index) {
+        return Double.longBitsToDouble(array.get(index));
+    }
+
+    /**
+     * Sets array[index] to value if the value is smaller.
+     *
+     * @return whether the value has been set
+     */
+    private static boolean lower(AtomicLongArray array, int index, double value) {
+        while (true) {
+            long bits = array.get(index);
+            if (!(value < Double.longBitsToDouble(bits))) {
+                return false;
+            }
+            if (array.compareAndSet(index, bits, Double.doubleToRawLongBits(value))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Sets array[index] to value if the value is greater.
+     *
+     * @return whether the value has been set
+     */
+    private static boolean raise(AtomicLongArray array, int index, double value) {
+        while (true) {
+            long bits = array.get(index);
+            if (!(value > Double.longBitsToDouble(bits))) {
+                return false;
+            }
+            if (array.compareAndSet(index, bits, Double.doubleToRawLongBits(value))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the policy deciding when changed bounds are applied
+     */
+    public NormalizationPolicy getPolicy() {
+        return policy;
     }
 
     /**
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package org.opt4j.optimizer.ea.espea;
+
+/**
+ * Decides how {@link ESPEA} and {@link ESPEASteadyState} breed new
+ * individuals: randomly until the archive has two members, using the early
+ * mating until an early generation left the archive at its capacity, using
+ * the late mating afterwards. The early mating is also used while the archive
+ * has fewer than the four members differential evolution requires.
+ *
+ * @author luisgerhorst
+ */
+class PhaseTracker {
+
+    public enum Phase {
+        INITIAL,
+        EARLY,
+        LATE
+    }
+
+    private final EnergyArchive archive;
+    private boolean capacityReached = false;
+
+    public PhaseTracker(final EnergyArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * @return the phase given the current archive
+     */
+    public Phase current() {
+        if (archive.size() < 2) {
+            return Phase.INITIAL;
+        } else if (!capacityReached || archive.size() < 4) {
+            return Phase.EARLY;
+        }
+        return Phase.LATE;
+    }
+
+    /**
+     * Must be called after the archive was updated with individuals bred in
+     * the given phase.
+     */
+    public void archiveUpdated(final Phase bredIn) {
+        if (bredIn == Phase.EARLY) {
+            capacityReached = archive.size() == archive.getCapacity();
+        }
+    }
+
+}
@@ -22,14 +22,17 @@
 
 package org.opt4j.optimizer.ea.espea;
 
+import static org.opt4j.core.Objective.Sign.MIN;
+
+import org.opt4j.core.Objective;
 import org.opt4j.core.Objectives;
 
 /**
  * Represents a scalarization function for <code>Objectives</code>, denoted as
- * W(y) in the {@link ESPEA} paper. When subclassed, the method
- * <code>calculate</code> must be implemented and calls should return a
- * positive, non-zero value that determines the focus put on a specific area in
- * the objective space. The lower the returned value, the greater the preference
+ * W(y) in the {@link ESPEA} paper. When subclassed, either
+ * <code>calculate(double[])</code> or <code>calculate(Objectives)</code> must
+ * be implemented and calls should return a positive, non-zero value that
+ * determines the focus put on a specific area in the objective space. The lower the returned value, the greater the preference
  * since such individuals are more likely to enter the archive.
  * <p>
  *
@@ -44,11 +47,68 @@ import org.opt4j.core.Objectives;
  * refined results for the preferred areas of the objective space. The {@link
  * EnergyArchive} does not guarantee that scalarization function values are
  * recomputed when it's contents change.
+ * <p>
+ *
+ * The {@link EnergyCache} works on arrays of normalized objective values.
+ * Subclasses that override one of the <code>Objectives</code> methods are
+ * still supported, the arrays are then wrapped into <code>Objectives</code>
+ * before these methods are called. Implementing the <code>double[]</code>
+ * methods instead avoids these allocations.
+ * <p>
+ *
+ * The normalized values are always to be minimized, 0.0 is the best value
+ * seen for an objective, also for objectives that are maximized. They are
+ * never negated: the wrapping <code>Objectives</code> use minimized copies of
+ * the objectives (with the same names), so <code>Objectives.array()</code>
+ * returns the same values as passed to <code>calculate(double[])</code>.
  *
  * @author luisgerhorst
  */
 public abstract class ScalarizationFunction {
 
+    /**
+     * Whether the subclass overrides <code>calculate(Objectives)</code> or
+     * <code>calculate(Objectives, Objectives)</code>. The {@link EnergyCache}
+     * then has to call these instead of the <code>double[]</code> methods.
+     */
+    private final boolean objectivesOverridden;
+    /**
+     * Whether the subclass overrides one of the pairwise
+     * <code>calculate</code> methods, see <code>isSeparable</code>.
+     */
+    private final boolean pairwiseOverridden;
+
+    /**
+     * @throws IllegalStateException if the subclass implements neither
+     * <code>calculate(double[])</code> nor <code>calculate(Objectives)</code>
+     */
+    protected ScalarizationFunction() {
+        if (!overrides("calculate", double[].class) && !overrides("calculate", Objectives.class)) {
+            throw new IllegalStateException(getClass().getName()
+                + " implements neither calculate(double[]) nor calculate(Objectives)");
+        }
+        objectivesOverridden = overrides("calculate", Objectives.class)
+            || overrides("calculate", Objectives.class, Objectives.class);
+        pairwiseOverridden = overrides("calculate", Objectives.class, Objectives.class)
+            || overrides("calculate", double[].class, double[].class);
+    }
+
+    /**
+     * Returns whether the pairwise <code>calculate</code> methods equal the
+     * product of the charges of the two individuals. This allows the {@link
+     * EnergyCache} to compute the charge of each archive member only once.
+     * <p>
+     * By default this is true unless a subclass overrides one of the pairwise
+     * methods, the energies are then computed by calling the pairwise method
+     * for each pair. Subclasses whose pairwise methods are still a product of
+     * charges may override this method to return true.
+     *
+     * @return true if the scalarization function is separable
+     */
+    public boolean isSeparable() {
+        return !pairwiseOverridden;
+    }
+
     /**
      * For optimization purposes this method may be overridden but otherwise it
      * is preferred if <code>calculate(Objectives)</code> is implemented
@@ -62,15 +122,103 @@ public abstract class ScalarizationFunction {
         return calculate(o1) * calculate(o2);
     }
 
+    /**
+     * Same as <code>calculate(Objectives, Objectives)</code> for objective
+     * values that are already normalized and stored in arrays as returned by
+     * <code>Objectives.array()</code>. Used by the {@link EnergyCache} to avoid
+     * allocations.
+     *
+     * @param o1 the objective values of the first individual
+     * @param o2 the objective values of the second individual
+     * @return the product of the charges of the two objective vectors
+     */
+    public double calculate(final double[] o1, final double[] o2) {
+        return calculate(o1) * calculate(o2);
+    }
+
     /**
      * This method is called by <code>calculate(Objectives, Objectives)</code>
-     * for each of the two <code>Objectives</code>. It shall be implemented by
-     * the subclass.
+     * for each of the two <code>Objectives</code>. The objectives are
+     * expected to be minimized, see the class documentation.
      *
      * @param objectives the <code>Objectives</code> to be scalarized
      * @return the charge of the <code>Individual</code> with the supplied
      * <code>Objectives</code>, must be greater than 0
      */
-    protected abstract double calculate(Objectives objectives);
+    protected double calculate(final Objectives objectives) {
+        return calculate(objectives.array());
+    }
+
+    /**
+     * Calculates the charge for the given objective values. It shall be
+     * implemented by the subclass unless <code>calculate(Objectives)</code> is
+     * implemented instead. The array must not be modified.
+     *
+     * @param objectives the objective values to be scalarized, in the order
+     * returned by <code>Objectives.array()</code>
+     * @return the charge of the <code>Individual</code> with the supplied
+     * objective values, must be greater than 0
+     */
+    protected double calculate(final double[] objectives) {
+        // Only reached if a subclass implementing calculate(Objectives) calls
+        // it, the constructor ensures one of the two is implemented.
+        throw new UnsupportedOperationException(getClass().getName()
+            + " does not implement calculate(double[])");
+    }
+
+    /**
+     * Calculates the charge for normalized objective values on behalf of the
+     * {@link EnergyCache}, calls <code>calculate(Objectives)</code> if the
+     * subclass overrides it.
+     *
+     * @param normalized the normalized objective values
+     * @param keys the objectives the values belong to
+     * @return the charge for the objective values
+     */
+    double charge(final double[] normalized, final Objective[] keys) {
+        if (objectivesOverridden) {
+            return calculate(toObjectives(normalized, keys));
+        }
+        return calculate(normalized);
+    }
+
+    /**
+     * Same as <code>charge</code> for the pairwise methods.
+     */
+    double pairwise(final double[] o1, final double[] o2, final Objective[] keys) {
+        if (objectivesOverridden) {
+            return calculate(toObjectives(o1, keys), toObjectives(o2, keys));
+        }
+        return calculate(o1, o2);
+    }
+
+    /**
+     * @return the normalized values stored under minimized copies of the
+     * given objectives, the order of the objectives does not change since it
+     * only depends on their names
+     */
+    private static Objectives toObjectives(final double[] values, final Objective[] keys) {
+        final Objectives objectives = new Objectives();
+        for (int k = 0; k < keys.length; k++) {
+            objectives.add(keys[k].getName(), MIN, values[k]);
+        }
+        return objectives;
+    }
+
+    /**
+     * @return true if a subclass declares the method with the given
+     * signature
+     */
+    private boolean overrides(final String name, final Class<?>... parameterTypes) {
+        for (Class<?> c = getClass(); c != ScalarizationFunction.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(name, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // Not declared here, continue with the superclass.
+            }
+        }
+        return false;
+    }
 
 }
@@ -22,8 +22,6 @@
 
 package org.opt4j.optimizer.ea.espea;
 
-import org.opt4j.core.Objectives;
-
 /**
  * Implementation of the Chebyshev method for scalarization as described in the
  * {@link ESPEA} paper. The utopia point is 0.
@@ -32,8 +30,7 @@ import org.opt4j.core.Objectives;
  */
 public class ScalarizationFunctionChebyshev extends ScalarizationFunction {
 
-    protected double calculate(final Objectives objectives) {
-        final double[] array = objectives.array();
+    protected double calculate(final double[] array) {
         double max = Double.NEGATIVE_INFINITY;
         for (int i = 0; i < array.length; i++) {
             // Normally we'd have to substract utopiaPoint[i] from array[i] but
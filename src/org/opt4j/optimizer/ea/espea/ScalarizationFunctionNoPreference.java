@@ -22,15 +22,13 @@
 
 package org.opt4j.optimizer.ea.espea;
 
-import org.opt4j.core.Objectives;
-
 /**
  * Always returns 1.0 as this represents no preference information.
  * 
  * @author luisgerhorst
  */
 public class ScalarizationFunctionNoPreference extends ScalarizationFunction {
-    protected double calculate(final Objectives objectives) {
+    protected double calculate(final double[] objectives) {
         return 1.0;
     }
 }
@@ -22,8 +22,6 @@
 
 package org.opt4j.optimizer.ea.espea;
 
-import org.opt4j.core.Objectives;
-
 /**
  * Sum of objectives scalarization function as described in the {@link ESPEA}
  * paper.
@@ -35,8 +33,7 @@ public class ScalarizationFunctionSumOfObjectives extends ScalarizationFunction
     /**
      * @return the sum of the objective values
      */
-    protected double calculate(final Objectives objectives) {
-        final double[] array = objectives.array();
+    protected double calculate(final double[] array) {
         double sum = 0;
         for (final double objective : array) {
             sum += objective;
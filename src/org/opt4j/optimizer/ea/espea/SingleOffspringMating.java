@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+package org.opt4j.optimizer.ea.espea;
+
+import java.util.List;
+
+import org.opt4j.core.Individual;
+
+/**
+ * A mating that can create a single offspring from parents addressed by
+ * their position in a list. Used by {@link ESPEASteadyState} which breeds one
+ * individual per finished evaluation, the offspring is created in time
+ * independent of the number of parents (the parents are neither copied nor
+ * enumerated).
+ *
+ * @author luisgerhorst
+ */
+public interface SingleOffspringMating {
+
+    /**
+     * Creates one offspring like <code>getOffspring(1, parents)</code> of
+     * the corresponding <code>Mating</code> would.
+     *
+     * @param parents the parents, not modified
+     * @return the offspring
+     */
+    public Individual createOffspring(List<Individual> parents);
+
+}
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Opt4J
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+
+
+package org.opt4j.optimizer.ea.espea;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores the energies between the archive members of an {@link EnergyCache}
+ * in a single contiguous array. Only the lower triangle of the (symmetric)
+ * matrix is stored, row i holds the summands for the columns 0 to i - 1 and
+ * starts at index i * (i - 1) / 2. When accessing an entry, the row must
+ * always be the greater one of the two indices.
+ *
+ * @author luisgerhorst
+ */
+public abstract class SummandMatrix {
+
+    public enum Precision {
+        DOUBLE,
+        FLOAT;
+    }
+
+    public enum Storage {
+        /**
+         * Store the summands in a Java array.
+         */
+        HEAP,
+        /**
+         * Store the summands outside the Java heap in a memory-mapped
+         * temporary file. Allows capacities for which the matrix does not fit
+         * into the heap (or an array).
+         */
+        MAPPED,
+        /**
+         * Do not store the summands, the {@link EnergyCache} recomputes them
+         * from the normalized objectives when needed.
+         */
+        NONE;
+    }
+
+    /**
+     * @param capacity the number of rows (and columns)
+     * @param precision the type used to store the summands
+     * @return an empty matrix
+     */
+    public static SummandMatrix create(final int capacity,
+                                       final Precision precision) {
+        return create(capacity, precision, Storage.HEAP, null);
+    }
+
+    /**
+     * @param capacity the number of rows (and columns)
+     * @param precision the type used to store the summands
+     * @param storage where the summands are stored
+     * @param directory the directory for the file of a MAPPED matrix, the
+     * default temporary-file directory if null
+     * @return an empty matrix
+     */
+    public static SummandMatrix create(final int capacity,
+                                       final Precision precision,
+                                       final Storage storage,
+                                       final File directory) {
+        final long size = offset(capacity);
+        if (storage == Storage.NONE) {
+            throw new IllegalArgumentException("Storage NONE has no summand matrix");
+        } else if (storage == Storage.MAPPED) {
+            return new Mapped(size, precision, directory);
+        }
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Capacity " + capacity + " too large for an array backed summand matrix");
+        }
+        switch (precision) {
+        case FLOAT:
+            return new SinglePrecision((int) size);
+        default: // DOUBLE
+            return new DoublePrecision((int) size);
+        }
+    }
+
+    /**
+     * @return the position of the first entry of the given row
+     */
+    protected static long offset(final int row) {
+        return (long) row * (row - 1) / 2;
+    }
+
+    /**
+     * @param row must be greater than column
+     * @param column must be smaller than row
+     * @return the summand stored for the two members
+     */
+    public abstract double get(int row, int column);
+
+    /**
+     * Stores the summand for the two members. Depending on the precision the
+     * value may be rounded, sums that are later updated using the value
+     * returned by <code>get</code> should therefore be computed from the
+     * value returned by this method.
+     *
+     * @param row must be greater than column
+     * @param column must be smaller than row
+     * @param summand the summand to be stored
+     * @return the value actually stored
+     */
+    public abstract double set(int row, int column, double summand);
+
+    private static final class DoublePrecision extends SummandMatrix {
+        private final double[] summands;
+
+        public DoublePrecision(final int size) {
+            summands = new double[size];
+        }
+
+        @Override
+        public double get(final int row, final int column) {
+            assert row > column : "row <= column";
+            return summands[(int) offset(row) + column];
+        }
+
+        @Override
+        public double set(final int row, final int column, final double summand) {
+            assert row > column : "row <= column";
+            summands[(int) offset(row) + column] = summand;
+            return summand;
+        }
+    }
+
+    /**
+     * Halves the memory required at the cost of precision.
+     */
+    private static final class SinglePrecision extends SummandMatrix {
+        private final float[] summands;
+
+        public SinglePrecision(final int size) {
+            summands = new float[size];
+        }
+
+        @Override
+        public double get(final int row, final int column) {
+            assert row > column : "row <= column";
+            return summands[(int) offset(row) + column];
+        }
+
+        @Override
+        public double set(final int row, final int column, final double summand) {
+            assert row > column : "row <= column";
+            final float stored = (float) summand;
+            summands[(int) offset(row) + column] = stored;
+            return stored;
+        }
+    }
+
+    /**
+     * Keeps the summands in a temporary file that is mapped into memory in
+     * chunks of CHUNK_BYTES. The file is deleted as soon as it has been
+     * mapped, the operating system keeps it alive until the mappings are
+     * garbage collected. Entries never cross a chunk boundary since the chunk
+     * size is a multiple of the entry size.
+     */
+    private static final class Mapped extends SummandMatrix {
+        private static final int CHUNK_SHIFT = 30;
+        private static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+        private static final long CHUNK_MASK = CHUNK_BYTES - 1;
+
+        private final MappedByteBuffer[] chunks;
+        private final boolean singlePrecision;
+        /**
+         * log2 of the bytes per entry.
+         */
+        private final int entryShift;
+
+        public Mapped(final long size, final Precision precision, final File directory) {
+            singlePrecision = precision == Precision.FLOAT;
+            entryShift = singlePrecision ? 2 : 3;
+            final long bytes = Math.max(size << entryShift, 1);
+            chunks = new MappedByteBuffer[(int) ((bytes + CHUNK_BYTES - 1) >>> CHUNK_SHIFT)];
+
+            try {
+                final File file = File.createTempFile("espea-summands", ".bin", directory);
+                final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                try {
+                    randomAccessFile.setLength(bytes);
+                    final FileChannel channel = randomAccessFile.getChannel();
+                    for (int chunk = 0; chunk < chunks.length; chunk++) {
+                        final long position = (long) chunk << CHUNK_SHIFT;
+                        final long length = Math.min(CHUNK_BYTES, bytes - position);
+                        chunks[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+                        chunks[chunk].order(ByteOrder.nativeOrder());
+                    }
+                } finally {
+                    // The mappings stay valid after the channel is closed.
+                    randomAccessFile.close();
+                    file.delete();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to map summand matrix with " + size + " entries", e);
+            }
+        }
+
+        @Override
+        public double get(final int row, final int column) {
+            assert row > column : "row <= column";
+            final long position = (offset(row) + column) << entryShift;
+            final MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+            final int index = (int) (position & CHUNK_MASK);
+            return singlePrecision ? chunk.getFloat(index) : chunk.getDouble(index);
+        }
+
+        @Override
+        public double set(final int row, final int column, final double summand) {
+            assert row > column : "row <= column";
+            final long position = (offset(row) + column) << entryShift;
+            final MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+            final int index = (int) (position & CHUNK_MASK);
+            if (singlePrecision) {
+                final float stored = (float) summand;
+                chunk.putFloat(index, stored);
+                return stored;
+            }
+            chunk.putDouble(index, summand);
+            return summand;
+        }
+    }
+
+}